@@ -18,7 +18,9 @@ package com.github.droidfu;
 import java.lang.ref.WeakReference;
 import java.util.HashMap;
 
+import com.github.droidfu.cachefu.AbstractCache;
 import com.github.droidfu.http.BetterHttp;
+import com.github.droidfu.imageloader.ImageLoader;
 
 import android.app.Application;
 import android.content.Context;
@@ -73,8 +75,20 @@ public class DroidFuApplication extends Application {
      * being terminated. In other words, your application can be terminated at any point in time, in
      * which case this method will NOT be invoked.
      * </p>
+     * <p>
+     * By default, this persists any values the {@link ImageLoader} and {@link BetterHttp} caches
+     * are still waiting to write to disk (see {@link AbstractCache#enableWriteBehind(int)}), as well
+     * as their disk cache journals, so make sure to call through to super when overriding it.
+     * </p>
      */
     public void onClose() {
-        // NO-OP by default
+        flushCache(ImageLoader.getImageCache());
+        flushCache(BetterHttp.getResponseCache());
+    }
+
+    private void flushCache(AbstractCache<?, ?> cache) {
+        if (cache != null && cache.isDiskCacheEnabled()) {
+            cache.flush();
+        }
     }
 }
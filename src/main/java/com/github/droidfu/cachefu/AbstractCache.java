@@ -19,17 +19,25 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Collection;
-import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import android.content.Context;
 import android.os.Environment;
 import android.util.Log;
 
 import com.github.droidfu.support.StringSupport;
+import com.google.common.base.Function;
+import com.google.common.collect.ComputationException;
 import com.google.common.collect.MapMaker;
 
 /**
@@ -45,10 +53,35 @@ import com.google.common.collect.MapMaker;
  * When pulling from the cache, it will first attempt to load the data from memory. If that fails,
  * it will try to load it from disk (assuming disk caching is enabled). If that succeeds, the data
  * will be put in the in-memory cache and returned (read-through). Otherwise it's a cache miss.
+ * Using {@link #get(Object, Loader)}, misses can be filled in from elsewhere (e.g. the network),
+ * such that concurrent misses for the same key are served by a single load.
  * </p>
  * <p>
- * Pushes to the cache are always write-through (i.e. the data will be stored both on disk, if disk
- * caching is enabled, and in memory).
+ * Pushes to the cache are write-through by default (i.e. the data will be stored both on disk, if
+ * disk caching is enabled, and in memory). Alternatively, {@link #enableWriteBehind(int)} lets
+ * pushes return as soon as the data is in memory, while a background thread persists it to disk.
+ * </p>
+ * <p>
+ * By default, values in the in-memory cache are softly referenced, which means they will be reclaimed
+ * whenever the garbage collector decides so. Alternatively, the memory tier can be bounded by an
+ * explicit total weight (e.g. in bytes) using {@link #setMaxWeight(long, Weigher)}, in which case
+ * values are strongly referenced and the least recently used elements will be evicted whenever
+ * that bound is exceeded.
+ * </p>
+ * <p>
+ * The disk cache keeps an index of its files in memory (persisted to a journal file in the cache
+ * directory), so probing it for a key that isn't there never touches the file system. The total
+ * size of the disk cache can be bounded using {@link #setMaxDiskCacheSize(long)}, in which case the
+ * least recently used files will be deleted whenever that bound is exceeded.
+ * </p>
+ * <p>
+ * All operations are thread-safe without locking the cache as a whole: reads from memory never
+ * block, and disk access is serialized only per key (using lock striping), so a slow read from the
+ * SD card for one element does not hold up access to any other.
+ * </p>
+ * <p>
+ * Every cache keeps statistics about its hits, misses, loads and evictions, which can be obtained
+ * using {@link #getStats()}.
  * </p>
  * 
  * @author Matthias Kaeppler
@@ -60,16 +93,55 @@ public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
 
     private static final String LOG_TAG = "Droid-Fu[CacheFu]";
 
-    private boolean isDiskCacheEnabled;
+    private static final int MIN_DISK_LOCK_STRIPES = 16;
+
+    private volatile boolean isDiskCacheEnabled;
 
     protected String diskCacheDirectory;
 
-    private ConcurrentMap<KeyT, ValT> cache;
+    private volatile ConcurrentMap<KeyT, ValT> cache;
 
     private String name;
     
     private long expirationInMinutes;
 
+    private int initialCapacity;
+
+    private int maxConcurrentThreads;
+
+    private volatile long maxWeight;
+
+    private volatile Weigher<? super ValT> weigher;
+
+    // access ordered element weights of the in-memory cache, used for LRU eviction when the memory
+    // tier is bounded; guarded by weightLock, as is currentWeight
+    private final LinkedHashMap<KeyT, Integer> elementWeights = new LinkedHashMap<KeyT, Integer>(
+            16, 0.75f, true);
+
+    private long currentWeight;
+
+    private final ReentrantLock weightLock = new ReentrantLock();
+
+    // non-null whenever the disk cache is enabled
+    private volatile DiskCacheIndex diskIndex;
+
+    private volatile long maxDiskCacheSize;
+
+    private final CacheStatsCounter stats = new CacheStatsCounter();
+
+    // serializes disk access per key; a key always maps to the same lock
+    private final Object[] diskLocks;
+
+    // non-null if disk writes are performed in the background
+    private volatile ThreadPoolExecutor diskWriter;
+
+    // values waiting to be written to disk by the diskWriter; holds only the latest value per key
+    private final ConcurrentHashMap<KeyT, ValT> pendingWrites = new ConcurrentHashMap<KeyT, ValT>();
+
+    // loads currently in flight; computing, so that all but the first caller for a key will block
+    // until the first one has finished loading it
+    private final ConcurrentMap<PendingLoad, PendingLoad> pendingLoads;
+
     /**
      * Creates a new cache instance.
      * 
@@ -90,37 +162,175 @@ public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
 
         this.name = name;
         this.expirationInMinutes = expirationInMinutes;
-                
+        this.initialCapacity = initialCapacity;
+        this.maxConcurrentThreads = maxConcurrentThreads;
+        this.cache = createMemoryCache();
+
+        int numDiskLocks = MIN_DISK_LOCK_STRIPES;
+        while (numDiskLocks < maxConcurrentThreads * 4) {
+            numDiskLocks <<= 1;
+        }
+        this.diskLocks = new Object[numDiskLocks];
+        for (int i = 0; i < numDiskLocks; i++) {
+            diskLocks[i] = new Object();
+        }
+
+        this.pendingLoads = new MapMaker().concurrencyLevel(maxConcurrentThreads)
+                .makeComputingMap(new Function<PendingLoad, PendingLoad>() {
+                    public PendingLoad apply(PendingLoad load) {
+                        load.run();
+                        return load;
+                    }
+                });
+    }
+
+    // package-private so that tests can pick keys which don't share a lock
+    Object diskLockFor(Object key) {
+        int hash = key.hashCode();
+        // spread the higher bits, since we only look at the lower ones
+        hash ^= (hash >>> 16);
+        return diskLocks[hash & (diskLocks.length - 1)];
+    }
+
+    private ConcurrentMap<KeyT, ValT> createMemoryCache() {
         MapMaker mapMaker = new MapMaker();
         mapMaker.initialCapacity(initialCapacity);
         mapMaker.expiration(expirationInMinutes * 60, TimeUnit.SECONDS);
         mapMaker.concurrencyLevel(maxConcurrentThreads);
-        mapMaker.softValues();
-        this.cache = mapMaker.makeMap();
+        if (maxWeight <= 0) {
+            // unbounded, so leave it to the GC to decide when to drop elements
+            mapMaker.softValues();
+        }
+        return mapMaker.makeMap();
     }
 
     /**
-     * Sanitize disk cache. Remove files which are older than expirationInMinutes.
+     * Bounds the in-memory cache by the total weight of its elements. Once that bound is exceeded,
+     * the least recently used elements will be evicted from memory (they remain in the disk cache,
+     * if enabled). Elements are strongly referenced while the bound is in effect, so it should be
+     * chosen with the available heap in mind. Any elements currently held in memory are retained.
+     * 
+     * @param maxWeight
+     *            the maximum total weight of all elements in memory, or a value <= 0 to fall back
+     *            to an unbounded, softly referenced memory cache
+     * @param weigher
+     *            determines the weight of a single element, e.g. its size in bytes
      */
-    private void sanitizeDiskCache() {
-        File[] cachedFiles = new File(diskCacheDirectory).listFiles();
-        if (cachedFiles == null) {
-            return;
+    public synchronized void setMaxWeight(long maxWeight, Weigher<? super ValT> weigher) {
+        if (maxWeight > 0 && weigher == null) {
+            throw new IllegalArgumentException("a weigher is required to bound the memory cache");
+        }
+
+        ConcurrentMap<KeyT, ValT> oldCache = cache;
+
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        weightLock.lock();
+        try {
+            elementWeights.clear();
+            currentWeight = 0;
+        } finally {
+            weightLock.unlock();
+        }
+        this.cache = createMemoryCache();
+
+        for (Map.Entry<KeyT, ValT> entry : oldCache.entrySet()) {
+            putInMemory(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @return the maximum total weight of the in-memory cache, or 0 if it's unbounded
+     */
+    public long getMaxWeight() {
+        return maxWeight > 0 ? maxWeight : 0;
+    }
+
+    /**
+     * @return the current total weight of the in-memory cache; always 0 if it's unbounded
+     */
+    public long getWeight() {
+        weightLock.lock();
+        try {
+            return currentWeight;
+        } finally {
+            weightLock.unlock();
+        }
+    }
+
+    private ValT putInMemory(KeyT key, ValT value) {
+        if (maxWeight <= 0) {
+            return cache.put(key, value);
+        }
+
+        int weight = weigher.weigh(value);
+        weightLock.lock();
+        try {
+            ValT previous = cache.put(key, value);
+            Integer previousWeight = elementWeights.put(key, weight);
+            if (previousWeight != null) {
+                currentWeight -= previousWeight;
+            }
+            currentWeight += weight;
+
+            // evict least recently used elements until we're back within bounds; elements which
+            // expired in the meantime are still accounted for until they come up here
+            Iterator<Map.Entry<KeyT, Integer>> lru = elementWeights.entrySet().iterator();
+            while (currentWeight > maxWeight && lru.hasNext()) {
+                Map.Entry<KeyT, Integer> eldest = lru.next();
+                lru.remove();
+                currentWeight -= eldest.getValue();
+                cache.remove(eldest.getKey());
+                stats.recordMemoryEviction(eldest.getKey());
+            }
+            return previous;
+        } finally {
+            weightLock.unlock();
         }
-        for (File f : cachedFiles) {
-        	// if file older than expirationInMinutes, remove it
-        	long lastModified = f.lastModified();
-        	Date now = new Date();
-        	long ageInMinutes = ((now.getTime() - lastModified) / (1000*60));
-        	
-        	if (ageInMinutes >= expirationInMinutes) {
-        		Log.d(name, "DISK cache expiration for file " + f.toString());
-        		f.delete();
-        	}
+    }
+
+    private void recordAccess(KeyT key) {
+        // don't make readers wait for each other just to maintain the LRU order; if the lock is
+        // taken, skipping this access merely makes the eviction order slightly less accurate
+        if (maxWeight > 0 && weightLock.tryLock()) {
+            try {
+                // access ordered, so this moves the element to the MRU end
+                elementWeights.get(key);
+            } finally {
+                weightLock.unlock();
+            }
+        }
+    }
+
+    private ValT removeFromMemory(Object key) {
+        if (maxWeight <= 0) {
+            return cache.remove(key);
         }
-	}
 
-	/**
+        weightLock.lock();
+        try {
+            Integer weight = elementWeights.remove(key);
+            if (weight != null) {
+                currentWeight -= weight;
+            }
+            return cache.remove(key);
+        } finally {
+            weightLock.unlock();
+        }
+    }
+
+    /**
+     * Loads the index of the disk cache directory. Files which are older than expirationInMinutes
+     * or exceed the disk cache size are removed.
+     */
+    private void openDiskIndex() {
+        DiskCacheIndex index = new DiskCacheIndex(diskCacheDirectory,
+                expirationInMinutes * 60 * 1000, maxDiskCacheSize, stats);
+        index.load();
+        diskIndex = index;
+    }
+
+    /**
      * Enable caching to the phone's internal storage or SD card.
      * 
      * @param context
@@ -160,19 +370,15 @@ public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
             }
         }
 
-        isDiskCacheEnabled = outFile.exists();
-
-        if (!isDiskCacheEnabled) {
+        if (!outFile.exists()) {
             Log.w(LOG_TAG, "Failed creating disk cache directory " + diskCacheDirectory);
-        } else {
-            Log.d(name, "enabled write through to " + diskCacheDirectory);
-
-            // sanitize disk cache
-            Log.d(name, "sanitize DISK cache");
-            sanitizeDiskCache();
+            return (isDiskCacheEnabled = false);
         }
 
-        return isDiskCacheEnabled;
+        Log.d(name, "enabled write through to " + diskCacheDirectory);
+        openDiskIndex();
+
+        return (isDiskCacheEnabled = true);
     }
 
     private void setRootDir(String rootDir) {
@@ -190,6 +396,129 @@ public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
         return diskCacheDirectory;
     }
 
+    /**
+     * Bounds the disk cache by the total size of its files. Once that bound is exceeded, the least
+     * recently used files will be deleted. Can be called before or after enabling the disk cache.
+     * 
+     * @param maxBytes
+     *            the maximum size of the disk cache in bytes, or a value <= 0 for no limit
+     */
+    public void setMaxDiskCacheSize(long maxBytes) {
+        this.maxDiskCacheSize = maxBytes;
+        DiskCacheIndex index = diskIndex;
+        if (index != null) {
+            index.setMaxBytes(maxBytes);
+        }
+    }
+
+    /**
+     * @return the maximum size of the disk cache in bytes, or 0 if it's unbounded
+     */
+    public long getMaxDiskCacheSize() {
+        return maxDiskCacheSize > 0 ? maxDiskCacheSize : 0;
+    }
+
+    /**
+     * Only meaningful if disk caching is enabled. See {@link #enableDiskCache}.
+     * 
+     * @return the total size in bytes of all files in the disk cache
+     */
+    public long getDiskCacheSize() {
+        DiskCacheIndex index = diskIndex;
+        return index != null ? index.getTotalBytes() : 0;
+    }
+
+    /**
+     * Only meaningful if disk caching is enabled. See {@link #enableDiskCache}. Makes
+     * {@link #put} return as soon as a value has been stored in memory, and persists it to disk on
+     * a background thread instead. If the same key is written again before its previous value made
+     * it to disk, only the latest value will be written. Until a value has been written, it can
+     * still be read from this cache, even if it has been evicted from memory in the meantime.
+     * 
+     * @param maxQueuedWrites
+     *            how many distinct keys may wait to be written to disk; if this is exceeded,
+     *            {@link #put} will write to disk itself until the background thread catches up
+     * @see #flush()
+     */
+    public synchronized void enableWriteBehind(int maxQueuedWrites) {
+        if (diskWriter != null) {
+            return;
+        }
+        final String threadName = "Droid-Fu[CacheFu] " + name + " writer";
+        diskWriter = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(maxQueuedWrites), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, threadName);
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Reverts to writing values to disk as part of {@link #put}, after persisting all values still
+     * waiting to be written.
+     */
+    public void disableWriteBehind() {
+        ThreadPoolExecutor writer;
+        synchronized (this) {
+            writer = diskWriter;
+            diskWriter = null;
+        }
+        if (writer != null) {
+            writer.shutdown();
+            flush();
+        }
+    }
+
+    public boolean isWriteBehindEnabled() {
+        return diskWriter != null;
+    }
+
+    /**
+     * Only meaningful if disk caching is enabled. See {@link #enableDiskCache}. Blocks until all
+     * values that were waiting to be written to disk when this method was called have been
+     * persisted (see {@link #enableWriteBehind(int)}), and syncs the disk cache journal. Pending
+     * writes are performed on the calling thread, so don't call this from the UI thread unless you
+     * have to (e.g. when the application is about to close).
+     */
+    public void flush() {
+        for (KeyT key : pendingWrites.keySet()) {
+            writePendingValue(key);
+        }
+        DiskCacheIndex index = diskIndex;
+        if (index != null) {
+            index.flush();
+        }
+    }
+
+    private void writePendingValue(KeyT key) {
+        synchronized (diskLockFor(key)) {
+            ValT value;
+            while ((value = pendingWrites.get(key)) != null) {
+                cacheToDisk(key, value);
+                // if the value was replaced while we were writing it, write the new one, too
+                if (pendingWrites.remove(key, value)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private final class DiskWriteTask implements Runnable {
+
+        private KeyT key;
+
+        private DiskWriteTask(KeyT key) {
+            this.key = key;
+        }
+
+        public void run() {
+            writePendingValue(key);
+        }
+    }
+
     /**
      * Only meaningful if disk caching is enabled. See {@link #enableDiskCache}. Turns a cache key
      * into the file name that will be used to persist the value to disk. Subclasses must implement
@@ -225,89 +554,286 @@ public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
     protected abstract void writeValueToDisk(File file, ValT value) throws IOException;
 
     private void cacheToDisk(KeyT key, ValT value) {
-        File file = new File(diskCacheDirectory + "/" + getFileNameForKey(key));
+        String fileName = getFileNameForKey(key);
+        File file = getFile(fileName);
         try {
             file.createNewFile();
             file.deleteOnExit();
 
             writeValueToDisk(file, value);
 
+            long size = file.length();
+            diskIndex.put(fileName, size);
+            stats.recordDiskWrite(size);
+
         } catch (FileNotFoundException e) {
             e.printStackTrace();
+            diskIndex.remove(fileName);
         } catch (IOException e) {
             e.printStackTrace();
+            diskIndex.remove(fileName);
+        }
+    }
+
+    private File getFile(String fileName) {
+        return new File(diskCacheDirectory + "/" + fileName);
+    }
+
+    /**
+     * Only meaningful if disk caching is enabled. See {@link #enableDiskCache}. Creates an empty
+     * file in the disk cache directory to which the value for the given key can be written by
+     * other means than {@link #writeValueToDisk(File, Object)}, e.g. while it's still being
+     * downloaded. It must be in the same format {@link #readValueFromDisk(File)} expects. Once it's
+     * complete, hand it to {@link #commitToDisk(Object, File)}; if writing it fails, delete it.
+     * Partial files left behind are deleted the next time the disk cache is enabled.
+     * 
+     * @param key
+     *            the cache key
+     * @return the new file
+     * @throws IOException
+     */
+    protected File createPartialFile(KeyT key) throws IOException {
+        return File.createTempFile("cachefu", DiskCacheIndex.PARTIAL_FILE_SUFFIX, new File(
+                diskCacheDirectory));
+    }
+
+    /**
+     * Only meaningful if disk caching is enabled. See {@link #enableDiskCache}. Moves a file
+     * obtained from {@link #createPartialFile(Object)} into place as the disk cache entry for the
+     * given key. The value is not read into memory; any value held in memory for this key is
+     * dropped, so that the next read picks up the new one from disk.
+     * 
+     * @param key
+     *            the cache key
+     * @param partialFile
+     *            the completely written file
+     * @return the file now holding the value
+     * @throws IOException
+     *             if the file could not be moved into place; it will have been deleted
+     */
+    protected File commitToDisk(KeyT key, File partialFile) throws IOException {
+        String fileName = getFileNameForKey(key);
+        File file = getFile(fileName);
+        synchronized (diskLockFor(key)) {
+            // whatever was about to be written for this key is outdated now
+            pendingWrites.remove(key);
+            removeFromMemory(key);
+
+            if (!partialFile.renameTo(file)) {
+                // some platforms refuse to rename onto an existing file
+                file.delete();
+                if (!partialFile.renameTo(file)) {
+                    partialFile.delete();
+                    diskIndex.remove(fileName);
+                    throw new IOException("failed moving " + partialFile + " to " + file);
+                }
+            }
+
+            long size = file.length();
+            diskIndex.put(fileName, size);
+            stats.recordDiskWrite(size);
         }
+        return file;
     }
 
-    private File getFileForKey(KeyT key) {
-        return new File(diskCacheDirectory + "/" + getFileNameForKey(key));
+    /**
+     * Called when a file has been deleted from the disk cache directory by means other than
+     * {@link #remove}.
+     */
+    void onFileDeleted(String fileName) {
+        DiskCacheIndex index = diskIndex;
+        if (index != null) {
+            index.remove(fileName);
+        }
     }
 
     /**
      * Reads a value from the cache by probing the in-memory cache, and if enabled and the in-memory
-     * probe was a miss, the disk cache.
+     * probe was a miss, the disk cache. Memory hits never block; disk reads only block concurrent
+     * access to the same key.
      * 
      * @param elementKey
      *            the cache key
      * @return the cached value, or null if element was not cached
      */
     @SuppressWarnings("unchecked")
-    public synchronized ValT get(Object elementKey) {
+    public ValT get(Object elementKey) {
         KeyT key = (KeyT) elementKey;
         ValT value = cache.get(key);
         if (value != null) {
             // memory hit
-            Log.d(name, "MEM cache hit for " + key.toString());
+            stats.recordMemoryHit(key);
+            recordAccess(key);
             return value;
         }
 
-        // memory miss, try reading from disk
-        File file = getFileForKey(key);
-        if (file.exists()) {
-        	// if file older than expirationInMinutes, remove it
-        	long lastModified = file.lastModified();
-        	Date now = new Date();
-        	long ageInMinutes = ((now.getTime() - lastModified) / (1000*60));
-        	
-        	if (ageInMinutes >= expirationInMinutes) {
-        		Log.d(name, "DISK cache expiration for file " + file.toString());
-        		file.delete();
-        		return null;
-        	}
-        	
-        	// disk hit
-            Log.d(name, "DISK cache hit for " + key.toString());
-            try {
-                value = readValueFromDisk(file);
-            } catch (IOException e) {
-                // treat decoding errors as a cache miss
-                e.printStackTrace();
-                return null;
+        if (!isDiskCacheEnabled) {
+            // cache miss
+            stats.recordMiss(key);
+            return null;
+        }
+
+        value = pendingWrites.get(key);
+        if (value != null) {
+            // evicted from memory, but not written to disk yet
+            stats.recordMemoryHit(key);
+            return value;
+        }
+
+        synchronized (diskLockFor(key)) {
+            // some other thread may have read the value from disk while we were waiting
+            value = cache.get(key);
+            if (value == null) {
+                value = pendingWrites.get(key);
             }
+            if (value != null) {
+                stats.recordMemoryHit(key);
+                return value;
+            }
+            value = readThroughFromDisk(key);
             if (value == null) {
-                return null;
+                stats.recordMiss(key);
             }
-            cache.put(key, value);
             return value;
         }
+    }
+
+    /**
+     * Reads a value from the cache like {@link #get(Object)}, but in case of a miss, loads it using
+     * the given loader and puts it in the cache. No matter how many threads miss the same key at
+     * once, only one of them will run its loader, while the others block until the value is
+     * available and then return that same value.
+     * 
+     * @param key
+     *            the cache key
+     * @param loader
+     *            produces the value if it isn't cached
+     * @return the cached or loaded value, or null if the loader returned null
+     * @throws ComputationException
+     *             wrapping any exception thrown by the loader; all threads waiting for that load
+     *             will see it, while subsequent calls will try loading the value again
+     */
+    public ValT get(KeyT key, Loader<? super KeyT, ? extends ValT> loader) {
+        ValT value = get(key);
+        if (value != null) {
+            return value;
+        }
+
+        PendingLoad load = new PendingLoad(key, loader);
+        try {
+            return pendingLoads.get(load).value;
+        } finally {
+            // the entry is only left in place if the load succeeded, and then only ours can be there
+            if (load.isLoaded) {
+                pendingLoads.remove(load);
+            }
+        }
+    }
+
+    private final class PendingLoad {
+
+        private final KeyT key;
 
-        // cache miss
-        return null;
+        private final Loader<? super KeyT, ? extends ValT> loader;
+
+        private ValT value;
+
+        private boolean isLoaded;
+
+        private PendingLoad(KeyT key, Loader<? super KeyT, ? extends ValT> loader) {
+            this.key = key;
+            this.loader = loader;
+        }
+
+        private void run() {
+            // someone may have finished loading it right before we got here
+            value = cache.get(key);
+            if (value == null) {
+                long startTime = System.nanoTime();
+                try {
+                    value = loader.load(key);
+                } catch (Exception e) {
+                    stats.recordLoad(System.nanoTime() - startTime, false);
+                    throw new ComputationException(e);
+                }
+                stats.recordLoad(System.nanoTime() - startTime, true);
+                if (value != null) {
+                    put(key, value);
+                }
+            }
+            isLoaded = true;
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean equals(Object other) {
+            return other instanceof AbstractCache.PendingLoad
+                    && key.equals(((PendingLoad) other).key);
+        }
+    }
+
+    private ValT readThroughFromDisk(KeyT key) {
+        // memory miss, try reading from disk; the index takes care of deleting expired files
+        String fileName = getFileNameForKey(key);
+        long size = diskIndex.touch(fileName);
+        if (size < 0) {
+            // cache miss
+            return null;
+        }
+
+        ValT value;
+        try {
+            value = readValueFromDisk(getFile(fileName));
+        } catch (FileNotFoundException e) {
+            // someone wiped the file behind our back (e.g. Android clearing the cache dir)
+            diskIndex.remove(fileName);
+            return null;
+        } catch (IOException e) {
+            // treat decoding errors as a cache miss
+            e.printStackTrace();
+            return null;
+        }
+        if (value == null) {
+            return null;
+        }
+        // disk hit
+        stats.recordDiskHit(key, size);
+        putInMemory(key, value);
+        return value;
     }
 
     /**
      * Writes an element to the cache. NOTE: If disk caching is enabled, this will write through to
-     * the disk, which may introduce a performance penalty.
+     * the disk, which may introduce a performance penalty, unless write-behind has been enabled
+     * using {@link #enableWriteBehind(int)}.
      */
-    public synchronized ValT put(KeyT key, ValT value) {
-        if (isDiskCacheEnabled) {
-            cacheToDisk(key, value);
+    public ValT put(KeyT key, ValT value) {
+        if (!isDiskCacheEnabled) {
+            return putInMemory(key, value);
+        }
+
+        ThreadPoolExecutor writer = diskWriter;
+        if (writer != null) {
+            ValT previous = putInMemory(key, value);
+            if (pendingWrites.put(key, value) == null) {
+                // if a write was already pending for this key, it will pick up the new value
+                writer.execute(new DiskWriteTask(key));
+            }
+            return previous;
         }
 
-        return cache.put(key, value);
+        synchronized (diskLockFor(key)) {
+            cacheToDisk(key, value);
+            return putInMemory(key, value);
+        }
     }
 
-    public synchronized void putAll(Map<? extends KeyT, ? extends ValT> t) {
+    public void putAll(Map<? extends KeyT, ? extends ValT> t) {
         throw new UnsupportedOperationException();
     }
 
@@ -320,8 +846,10 @@ public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
      * @return true if the value is cached in memory or on disk, false otherwise
      */
     @SuppressWarnings("unchecked")
-    public synchronized boolean containsKey(Object key) {
-        return cache.containsKey(key) || (isDiskCacheEnabled && getFileForKey((KeyT) key).exists());
+    public boolean containsKey(Object key) {
+        return cache.containsKey(key)
+                || (isDiskCacheEnabled && (pendingWrites.containsKey(key) || diskIndex
+                        .contains(getFileNameForKey((KeyT) key))));
     }
 
     /**
@@ -331,34 +859,39 @@ public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
      *            the cache key
      * @return true if the value is currently hold in memory, false otherwise
      */
-    public synchronized boolean containsKeyInMemory(Object key) {
+    public boolean containsKeyInMemory(Object key) {
         return cache.containsKey(key);
     }
 
     /**
      * Checks if the given value is currently hold in memory.
      */
-    public synchronized boolean containsValue(Object value) {
+    public boolean containsValue(Object value) {
         return cache.containsValue(value);
     }
 
     @SuppressWarnings("unchecked")
-    public synchronized ValT remove(Object key) {
-        ValT value = removeKey(key);
+    public ValT remove(Object key) {
+        if (!isDiskCacheEnabled) {
+            return removeKey(key);
+        }
 
-        if (isDiskCacheEnabled) {
-            File cachedValue = getFileForKey((KeyT) key);
+        synchronized (diskLockFor(key)) {
+            ValT value = removeKey(key);
+            pendingWrites.remove(key);
+            String fileName = getFileNameForKey((KeyT) key);
+            diskIndex.remove(fileName);
+            File cachedValue = getFile(fileName);
             if (cachedValue.exists()) {
                 cachedValue.delete();
             }
+            return value;
         }
-
-        return value;
     }
 
     // Forced key expiration
     public ValT removeKey(Object key) {
-        return cache.remove(key);
+        return removeFromMemory(key);
     }
 
     public Set<KeyT> keySet() {
@@ -369,14 +902,32 @@ public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
         return cache.entrySet();
     }
 
-    public synchronized int size() {
+    public int size() {
         return cache.size();
     }
 
-    public synchronized boolean isEmpty() {
+    public boolean isEmpty() {
         return cache.isEmpty();
     }
 
+    /**
+     * @return a snapshot of this cache's hit, miss, load and eviction statistics
+     */
+    public CacheStats getStats() {
+        return stats.snapshot();
+    }
+
+    /**
+     * Turns on debug logging of every cache hit, miss and eviction. Since that's rather expensive
+     * on a hot path, it's disabled by default.
+     * 
+     * @param enabled
+     *            whether cache events should be logged
+     */
+    public void setLoggingEnabled(boolean enabled) {
+        stats.setLogTag(enabled ? name : null);
+    }
+
     public boolean isDiskCacheEnabled() {
         return isDiskCacheEnabled;
     }
@@ -389,22 +940,42 @@ public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
     public void setDiskCacheEnabled(String rootDir) {
         if (rootDir != null && rootDir.length() > 0) {
             setRootDir(rootDir);
+            // the journal lives in the cache directory, so it must exist before the index is loaded
+            new File(diskCacheDirectory).mkdirs();
+            openDiskIndex();
             this.isDiskCacheEnabled = true;
         } else {
             this.isDiskCacheEnabled = false;
         }
     }
 
-    public synchronized void clear() {
-        cache.clear();
+    public void clear() {
+        weightLock.lock();
+        try {
+            elementWeights.clear();
+            currentWeight = 0;
+            cache.clear();
+        } finally {
+            weightLock.unlock();
+        }
+        // a value stays pending until it's on disk, so taking its lock waits out a write in
+        // progress; once it's no longer pending, the writer can't bring the file back
+        for (KeyT key : pendingWrites.keySet()) {
+            synchronized (diskLockFor(key)) {
+                pendingWrites.remove(key);
+            }
+        }
 
         if (isDiskCacheEnabled) {
+            diskIndex.clear();
             File[] cachedFiles = new File(diskCacheDirectory).listFiles();
             if (cachedFiles == null) {
                 return;
             }
             for (File f : cachedFiles) {
-                f.delete();
+                if (!DiskCacheIndex.isReservedFileName(f.getName())) {
+                    f.delete();
+                }
             }
         }
 
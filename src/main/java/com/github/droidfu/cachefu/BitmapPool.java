@@ -0,0 +1,267 @@
+/* Copyright (c) 2009 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.droidfu.cachefu;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.github.droidfu.support.DiagnosticSupport;
+
+/**
+ * A pool of bitmaps which are no longer in use, bucketed by their dimensions and pixel format, so
+ * that decoding a new image of the same size can reuse an old bitmap's memory instead of
+ * allocating a new one. This relies on {@code BitmapFactory.Options.inBitmap}, which was introduced
+ * in Honeycomb (API level 11); on older platforms, the pool stays empty and decoding falls back to
+ * allocating fresh bitmaps.
+ * <p>
+ * Only put bitmaps here which are guaranteed to not be referenced anymore, e.g. by an ImageView
+ * still displaying them, since their pixels will be overwritten by the next decode.
+ * </p>
+ *
+ * @author Matthias Kaeppler
+ */
+public class BitmapPool {
+
+    private static final String LOG_TAG = "Droid-Fu[CacheFu]";
+
+    // BitmapFactory.Options.inBitmap and inMutable, or null if the platform doesn't support reuse
+    private static final Field IN_BITMAP;
+    private static final Field IN_MUTABLE;
+
+    static {
+        Field inBitmap = null, inMutable = null;
+        if (DiagnosticSupport.ANDROID_API_LEVEL >= 11) {
+            try {
+                inBitmap = BitmapFactory.Options.class.getField("inBitmap");
+                inMutable = BitmapFactory.Options.class.getField("inMutable");
+            } catch (NoSuchFieldException e) {
+                inBitmap = null;
+                inMutable = null;
+            }
+        }
+        IN_BITMAP = inBitmap;
+        IN_MUTABLE = inMutable;
+    }
+
+    private final HashMap<Long, LinkedList<Bitmap>> buckets = new HashMap<Long, LinkedList<Bitmap>>();
+
+    private final long maxBytes;
+
+    private long currentBytes;
+
+    private long hitCount, missCount;
+
+    /**
+     * @param maxBytes
+     *            the maximum number of bytes taken up by the pixels of all pooled bitmaps; bitmaps
+     *            that would exceed this are left to the garbage collector
+     */
+    public BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return true if the current platform supports decoding into existing bitmaps
+     */
+    public static boolean isSupported() {
+        return IN_BITMAP != null;
+    }
+
+    private static Long bucketFor(int width, int height, Bitmap.Config config) {
+        int configOrdinal = config != null ? config.ordinal() + 1 : 0;
+        return Long.valueOf(((long) width << 32) | ((long) height << 8) | configOrdinal);
+    }
+
+    private static int sizeOf(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * Takes a bitmap of the given dimensions and format out of the pool.
+     *
+     * @return a bitmap whose pixels may be overwritten, or null if there is none
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        LinkedList<Bitmap> bucket = buckets.get(bucketFor(width, height, config));
+        if (bucket == null || bucket.isEmpty()) {
+            missCount++;
+            return null;
+        }
+        Bitmap bitmap = bucket.removeFirst();
+        currentBytes -= sizeOf(bitmap);
+        hitCount++;
+        return bitmap;
+    }
+
+    /**
+     * Returns a bitmap to the pool, so that its memory can be reused. Bitmaps which can't be decoded
+     * into (because they are immutable, recycled, or the platform doesn't support it) are ignored.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (!isSupported() || !bitmap.isMutable() || bitmap.isRecycled()) {
+            return;
+        }
+        int size = sizeOf(bitmap);
+        if (currentBytes + size > maxBytes) {
+            return;
+        }
+        Long key = bucketFor(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        LinkedList<Bitmap> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new LinkedList<Bitmap>();
+            buckets.put(key, bucket);
+        }
+        bucket.addLast(bitmap);
+        currentBytes += size;
+    }
+
+    /**
+     * Drops all pooled bitmaps.
+     */
+    public synchronized void clear() {
+        buckets.clear();
+        currentBytes = 0;
+    }
+
+    /**
+     * Decodes the given image data, reusing a pooled bitmap if there is one of matching size. The
+     * result is decoded as mutable where supported, so that it can later be put back into the pool.
+     *
+     * @param imageData
+     *            the binary image data
+     * @return the decoded image, or null if the image data could not be decoded
+     */
+    public Bitmap decode(byte[] imageData) {
+        return decode(imageData, new BitmapFactory.Options());
+    }
+
+    /**
+     * Decodes the given image data using the given options, reusing a pooled bitmap if there is
+     * one of matching size. Since bitmaps can only be reused for images of exactly the same size,
+     * nothing will be reused when downsampling.
+     *
+     * @param imageData
+     *            the binary image data
+     * @param options
+     *            the decoding options; if the image dimensions have already been determined, they
+     *            are taken from here instead of decoding the bounds again
+     * @return the decoded image, or null if the image data could not be decoded
+     */
+    public Bitmap decode(byte[] imageData, BitmapFactory.Options options) {
+        return decode(imageData, null, options);
+    }
+
+    /**
+     * Decodes the given image file like {@link #decode(byte[], BitmapFactory.Options)}.
+     * 
+     * @param pathName
+     *            the path of the image file
+     * @param options
+     *            the decoding options; if the image dimensions have already been determined, they
+     *            are taken from here instead of decoding the bounds again
+     * @return the decoded image, or null if the file could not be decoded
+     */
+    public Bitmap decodeFile(String pathName, BitmapFactory.Options options) {
+        return decode(null, pathName, options);
+    }
+
+    // decodes either the image data or, if that's null, the file
+    private static Bitmap decodeSource(byte[] imageData, String pathName,
+            BitmapFactory.Options options) {
+        if (imageData != null) {
+            return BitmapFactory.decodeByteArray(imageData, 0, imageData.length, options);
+        }
+        return BitmapFactory.decodeFile(pathName, options);
+    }
+
+    private Bitmap decode(byte[] imageData, String pathName, BitmapFactory.Options options) {
+        if (!isSupported()) {
+            return decodeSource(imageData, pathName, options);
+        }
+
+        Bitmap reusable = null;
+        if (options.inSampleSize <= 1) {
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                options.inJustDecodeBounds = true;
+                decodeSource(imageData, pathName, options);
+                options.inJustDecodeBounds = false;
+                if (options.outWidth <= 0 || options.outHeight <= 0) {
+                    return null;
+                }
+            }
+            // images are decoded to ARGB_8888 by default, so that's the only bucket we look at
+            reusable = get(options.outWidth, options.outHeight, Bitmap.Config.ARGB_8888);
+        }
+
+        try {
+            IN_MUTABLE.setBoolean(options, true);
+            if (reusable != null) {
+                IN_BITMAP.set(options, reusable);
+            }
+        } catch (IllegalAccessException e) {
+            // can't happen, the fields are public
+            return decodeSource(imageData, pathName, options);
+        }
+
+        try {
+            return decodeSource(imageData, pathName, options);
+        } catch (IllegalArgumentException e) {
+            // the platform refused to decode into this bitmap (e.g. unsupported image format)
+            Log.w(LOG_TAG, "failed reusing bitmap, allocating a new one: " + e.getMessage());
+            try {
+                IN_BITMAP.set(options, null);
+            } catch (IllegalAccessException iae) {
+                // can't happen, the fields are public
+            }
+            return decodeSource(imageData, pathName, options);
+        }
+    }
+
+    /**
+     * @return the number of bytes taken up by the pixels of all pooled bitmaps
+     */
+    public synchronized long getSize() {
+        return currentBytes;
+    }
+
+    /**
+     * @return how often a pooled bitmap could be handed out for reuse
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return how often no pooled bitmap of matching size was available
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return the ratio of requests which could be served from the pool, or 0 if there have been
+     *         none yet
+     */
+    public synchronized double getHitRate() {
+        long requestCount = hitCount + missCount;
+        return requestCount == 0 ? 0.0 : (double) hitCount / requestCount;
+    }
+}
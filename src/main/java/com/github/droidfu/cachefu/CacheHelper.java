@@ -47,6 +47,7 @@ public class CacheHelper {
 
         for (File file : list) {
             file.delete();
+            cache.onFileDeleted(file.getName());
         }
     }
 
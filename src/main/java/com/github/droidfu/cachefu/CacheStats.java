@@ -0,0 +1,167 @@
+/* Copyright (c) 2009 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.droidfu.cachefu;
+
+/**
+ * An immutable snapshot of the statistics of an {@link AbstractCache}, as returned by
+ * {@link AbstractCache#getStats()}. All counts are cumulative since the cache was created.
+ *
+ * @author Matthias Kaeppler
+ */
+public final class CacheStats {
+
+    private final long memoryHitCount;
+    private final long diskHitCount;
+    private final long missCount;
+    private final long loadSuccessCount;
+    private final long loadFailureCount;
+    private final long totalLoadTimeNanos;
+    private final long diskBytesRead;
+    private final long diskBytesWritten;
+    private final long memoryEvictionCount;
+    private final long diskEvictionCount;
+    private final long diskExpirationCount;
+
+    CacheStats(long memoryHitCount, long diskHitCount, long missCount, long loadSuccessCount,
+            long loadFailureCount, long totalLoadTimeNanos, long diskBytesRead,
+            long diskBytesWritten, long memoryEvictionCount, long diskEvictionCount,
+            long diskExpirationCount) {
+        this.memoryHitCount = memoryHitCount;
+        this.diskHitCount = diskHitCount;
+        this.missCount = missCount;
+        this.loadSuccessCount = loadSuccessCount;
+        this.loadFailureCount = loadFailureCount;
+        this.totalLoadTimeNanos = totalLoadTimeNanos;
+        this.diskBytesRead = diskBytesRead;
+        this.diskBytesWritten = diskBytesWritten;
+        this.memoryEvictionCount = memoryEvictionCount;
+        this.diskEvictionCount = diskEvictionCount;
+        this.diskExpirationCount = diskExpirationCount;
+    }
+
+    /**
+     * @return the number of lookups which were served from memory
+     */
+    public long getMemoryHitCount() {
+        return memoryHitCount;
+    }
+
+    /**
+     * @return the number of lookups which were served from the disk cache
+     */
+    public long getDiskHitCount() {
+        return diskHitCount;
+    }
+
+    /**
+     * @return the number of lookups which found neither in memory nor on disk
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return the total number of lookups
+     */
+    public long getRequestCount() {
+        return memoryHitCount + diskHitCount + missCount;
+    }
+
+    /**
+     * @return the ratio of lookups which were served from memory or disk, or 1.0 if there have
+     *         been no lookups yet
+     */
+    public double getHitRate() {
+        long requestCount = getRequestCount();
+        return requestCount == 0 ? 1.0 : (double) (memoryHitCount + diskHitCount) / requestCount;
+    }
+
+    /**
+     * @return the number of values successfully produced by a {@link Loader}, including null
+     *         values
+     */
+    public long getLoadSuccessCount() {
+        return loadSuccessCount;
+    }
+
+    /**
+     * @return the number of times a {@link Loader} threw an exception
+     */
+    public long getLoadFailureCount() {
+        return loadFailureCount;
+    }
+
+    /**
+     * @return the total time spent in {@link Loader}s, in nanoseconds
+     */
+    public long getTotalLoadTimeNanos() {
+        return totalLoadTimeNanos;
+    }
+
+    /**
+     * @return the average time spent per load, in nanoseconds, or 0 if nothing has been loaded
+     */
+    public long getAverageLoadTimeNanos() {
+        long loadCount = loadSuccessCount + loadFailureCount;
+        return loadCount == 0 ? 0 : totalLoadTimeNanos / loadCount;
+    }
+
+    /**
+     * @return the number of bytes read from the disk cache
+     */
+    public long getDiskBytesRead() {
+        return diskBytesRead;
+    }
+
+    /**
+     * @return the number of bytes written to the disk cache
+     */
+    public long getDiskBytesWritten() {
+        return diskBytesWritten;
+    }
+
+    /**
+     * @return the number of values dropped from memory because its weight bound was exceeded
+     */
+    public long getMemoryEvictionCount() {
+        return memoryEvictionCount;
+    }
+
+    /**
+     * @return the number of files deleted because the disk cache size was exceeded
+     */
+    public long getDiskEvictionCount() {
+        return diskEvictionCount;
+    }
+
+    /**
+     * @return the number of files deleted from the disk cache because they had expired
+     */
+    public long getDiskExpirationCount() {
+        return diskExpirationCount;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats[memoryHits=" + memoryHitCount + ", diskHits=" + diskHitCount
+                + ", misses=" + missCount + ", loadSuccesses=" + loadSuccessCount
+                + ", loadFailures=" + loadFailureCount + ", totalLoadTimeNanos="
+                + totalLoadTimeNanos + ", diskBytesRead=" + diskBytesRead + ", diskBytesWritten="
+                + diskBytesWritten + ", memoryEvictions=" + memoryEvictionCount
+                + ", diskEvictions=" + diskEvictionCount + ", diskExpirations="
+                + diskExpirationCount + "]";
+    }
+}
@@ -0,0 +1,134 @@
+/* Copyright (c) 2009 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.droidfu.cachefu;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.util.Log;
+
+/**
+ * Receives all events of interest from a cache, counts them, and if logging has been enabled, logs
+ * them. The counters are striped by thread, so that threads hitting the cache at the same time
+ * don't all compete for the same memory location.
+ *
+ * @author Matthias Kaeppler
+ */
+class CacheStatsCounter {
+
+    private static final int MEMORY_HITS = 0;
+    private static final int DISK_HITS = 1;
+    private static final int MISSES = 2;
+    private static final int LOAD_SUCCESSES = 3;
+    private static final int LOAD_FAILURES = 4;
+    private static final int LOAD_TIME_NANOS = 5;
+    private static final int DISK_BYTES_READ = 6;
+    private static final int DISK_BYTES_WRITTEN = 7;
+    private static final int MEMORY_EVICTIONS = 8;
+    private static final int DISK_EVICTIONS = 9;
+    private static final int DISK_EXPIRATIONS = 10;
+
+    private static final int NUM_STRIPES = 8;
+
+    // 16 longs make for 128 bytes per stripe, so stripes never share a cache line
+    private static final int STRIPE_SIZE = 16;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_STRIPES * STRIPE_SIZE);
+
+    // null if logging is disabled
+    private volatile String logTag;
+
+    void setLogTag(String logTag) {
+        this.logTag = logTag;
+    }
+
+    private void add(int counter, long delta) {
+        int stripe = (int) Thread.currentThread().getId() & (NUM_STRIPES - 1);
+        counts.addAndGet(stripe * STRIPE_SIZE + counter, delta);
+    }
+
+    private long sum(int counter) {
+        long sum = 0;
+        for (int stripe = 0; stripe < NUM_STRIPES; stripe++) {
+            sum += counts.get(stripe * STRIPE_SIZE + counter);
+        }
+        return sum;
+    }
+
+    void recordMemoryHit(Object key) {
+        add(MEMORY_HITS, 1);
+        String tag = logTag;
+        if (tag != null) {
+            Log.d(tag, "MEM cache hit for " + key);
+        }
+    }
+
+    void recordDiskHit(Object key, long bytesRead) {
+        add(DISK_HITS, 1);
+        add(DISK_BYTES_READ, bytesRead);
+        String tag = logTag;
+        if (tag != null) {
+            Log.d(tag, "DISK cache hit for " + key);
+        }
+    }
+
+    void recordMiss(Object key) {
+        add(MISSES, 1);
+        String tag = logTag;
+        if (tag != null) {
+            Log.d(tag, "cache miss for " + key);
+        }
+    }
+
+    void recordLoad(long loadTimeNanos, boolean success) {
+        add(success ? LOAD_SUCCESSES : LOAD_FAILURES, 1);
+        add(LOAD_TIME_NANOS, loadTimeNanos);
+    }
+
+    void recordDiskWrite(long bytesWritten) {
+        add(DISK_BYTES_WRITTEN, bytesWritten);
+    }
+
+    void recordMemoryEviction(Object key) {
+        add(MEMORY_EVICTIONS, 1);
+        String tag = logTag;
+        if (tag != null) {
+            Log.d(tag, "MEM cache eviction for " + key);
+        }
+    }
+
+    void recordDiskEviction(String fileName) {
+        add(DISK_EVICTIONS, 1);
+        String tag = logTag;
+        if (tag != null) {
+            Log.d(tag, "DISK cache eviction for file " + fileName);
+        }
+    }
+
+    void recordDiskExpiration(String fileName) {
+        add(DISK_EXPIRATIONS, 1);
+        String tag = logTag;
+        if (tag != null) {
+            Log.d(tag, "DISK cache expiration for file " + fileName);
+        }
+    }
+
+    CacheStats snapshot() {
+        return new CacheStats(sum(MEMORY_HITS), sum(DISK_HITS), sum(MISSES), sum(LOAD_SUCCESSES),
+                sum(LOAD_FAILURES), sum(LOAD_TIME_NANOS), sum(DISK_BYTES_READ),
+                sum(DISK_BYTES_WRITTEN), sum(MEMORY_EVICTIONS), sum(DISK_EVICTIONS),
+                sum(DISK_EXPIRATIONS));
+    }
+}
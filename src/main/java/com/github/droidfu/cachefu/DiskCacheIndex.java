@@ -0,0 +1,497 @@
+/* Copyright (c) 2009 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.droidfu.cachefu;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * An in-memory index of the files in a disk cache directory, so that the disk cache can be probed
+ * without touching the file system. For every file, it tracks its size, when it was last accessed
+ * and when it expires, and it keeps the total size of the directory below a given budget by
+ * deleting the least recently used files.
+ * <p>
+ * The index survives restarts by means of an append-only journal file in the cache directory,
+ * which is replayed once when the index is loaded and compacted whenever it has grown too large.
+ * If there is no usable journal, the index is rebuilt from the directory listing.
+ * </p>
+ *
+ * @author Matthias Kaeppler
+ */
+class DiskCacheIndex {
+
+    static final String JOURNAL_FILE = ".journal";
+
+    private static final String JOURNAL_FILE_TMP = ".journal.tmp";
+
+    private static final String NOMEDIA_FILE = ".nomedia";
+
+    // suffix of files which are still being written to, see AbstractCache.createPartialFile
+    static final String PARTIAL_FILE_SUFFIX = ".part";
+
+    private static final String JOURNAL_HEADER = "cachefu.journal.1";
+
+    private static final char OP_PUT = 'P';
+
+    private static final char OP_ACCESS = 'A';
+
+    private static final char OP_DELETE = 'D';
+
+    // compact the journal once it contains this many more lines than there are entries
+    private static final int MAX_REDUNDANT_OPS = 2000;
+
+    private static final String LOG_TAG = "Droid-Fu[CacheFu]";
+
+    private static final class Entry {
+        private long size;
+        private long lastAccess;
+        private long expiresAt;
+
+        private Entry(long size, long lastAccess, long expiresAt) {
+            this.size = size;
+            this.lastAccess = lastAccess;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final String directory;
+
+    private final long expirationMillis;
+
+    private final CacheStatsCounter stats;
+
+    // iteration starts at the least recently used file; we maintain the order ourselves rather than
+    // making the map access ordered, since merely checking for a file must not count as using it
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    private long totalBytes;
+
+    private long maxBytes;
+
+    private Writer journal;
+
+    private int redundantOps;
+
+    /**
+     * @param directory
+     *            the directory holding the cached files
+     * @param expirationMillis
+     *            how long a file stays valid after it has been written
+     * @param maxBytes
+     *            the maximum total size of all files, or a value <= 0 for no limit
+     * @param stats
+     *            receives expirations and evictions
+     */
+    DiskCacheIndex(String directory, long expirationMillis, long maxBytes,
+            CacheStatsCounter stats) {
+        this.directory = directory;
+        this.expirationMillis = expirationMillis;
+        this.maxBytes = maxBytes;
+        this.stats = stats;
+    }
+
+    static boolean isReservedFileName(String fileName) {
+        return JOURNAL_FILE.equals(fileName) || JOURNAL_FILE_TMP.equals(fileName)
+                || NOMEDIA_FILE.equals(fileName);
+    }
+
+    static boolean isPartialFileName(String fileName) {
+        return fileName.endsWith(PARTIAL_FILE_SUFFIX);
+    }
+
+    /**
+     * Populates the index from the journal, or if that fails, from the directory listing. Files
+     * which have expired or exceed the size budget are deleted.
+     */
+    synchronized void load() {
+        entries.clear();
+        totalBytes = 0;
+
+        if (!readJournal()) {
+            entries.clear();
+            totalBytes = 0;
+            scanDirectory();
+        }
+
+        long now = System.currentTimeMillis();
+        List<String> expiredFiles = new ArrayList<String>();
+        Iterator<Map.Entry<String, Entry>> iter = entries.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, Entry> entry = iter.next();
+            if (entry.getValue().expiresAt <= now) {
+                iter.remove();
+                totalBytes -= entry.getValue().size;
+                expiredFiles.add(entry.getKey());
+            }
+        }
+        List<String> evictedFiles = trimToSize();
+
+        // files which were still being written to when we last went down are of no use
+        File[] partialFiles = new File(directory).listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String fileName) {
+                return isPartialFileName(fileName);
+            }
+        });
+        if (partialFiles != null) {
+            for (File file : partialFiles) {
+                file.delete();
+            }
+        }
+
+        for (String fileName : expiredFiles) {
+            stats.recordDiskExpiration(fileName);
+            new File(directory, fileName).delete();
+        }
+        for (String fileName : evictedFiles) {
+            stats.recordDiskEviction(fileName);
+            new File(directory, fileName).delete();
+        }
+
+        // start with a clean journal, so that we don't need to replay garbage next time
+        rewriteJournal();
+    }
+
+    private boolean readJournal() {
+        File journalFile = new File(directory, JOURNAL_FILE);
+        if (!journalFile.exists()) {
+            return false;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile),
+                    "UTF-8"), 8192);
+            if (!JOURNAL_HEADER.equals(reader.readLine())) {
+                return false;
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // ignore lines that aren't well-formed, e.g. because we crashed halfway through
+                // appending them
+                try {
+                    replay(line);
+                } catch (RuntimeException e) {
+                    Log.w(LOG_TAG, "skipping corrupt journal entry: " + line);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "failed reading cache journal, will rebuild it: " + e.getMessage());
+            return false;
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    private void replay(String line) {
+        String[] fields;
+        switch (line.charAt(0)) {
+        case OP_PUT:
+            // P <size> <last access> <expires at> <file name>
+            fields = line.split(" ", 5);
+            putEntry(fields[4], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                    Long.parseLong(fields[3])));
+            break;
+        case OP_ACCESS:
+            // A <last access> <file name>
+            fields = line.split(" ", 3);
+            Entry entry = entries.get(fields[2]);
+            if (entry != null) {
+                markUsed(fields[2], entry, Long.parseLong(fields[1]));
+            }
+            break;
+        case OP_DELETE:
+            // D <file name>
+            removeEntry(line.substring(2));
+            break;
+        default:
+            throw new IllegalArgumentException(line);
+        }
+    }
+
+    private void scanDirectory() {
+        File[] files = new File(directory).listFiles();
+        if (files == null) {
+            return;
+        }
+        // oldest first, so that the most recently modified files end up at the MRU end
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File file : files) {
+            if (file.isFile() && !isReservedFileName(file.getName())
+                    && !isPartialFileName(file.getName())) {
+                long lastModified = file.lastModified();
+                putEntry(file.getName(), new Entry(file.length(), lastModified, lastModified
+                        + expirationMillis));
+            }
+        }
+    }
+
+    private void markUsed(String fileName, Entry entry, long now) {
+        entry.lastAccess = now;
+        // re-insert it, so that it moves to the MRU end
+        entries.remove(fileName);
+        entries.put(fileName, entry);
+    }
+
+    private void putEntry(String fileName, Entry entry) {
+        Entry previous = entries.remove(fileName);
+        entries.put(fileName, entry);
+        if (previous != null) {
+            totalBytes -= previous.size;
+        }
+        totalBytes += entry.size;
+    }
+
+    private Entry removeEntry(String fileName) {
+        Entry entry = entries.remove(fileName);
+        if (entry != null) {
+            totalBytes -= entry.size;
+        }
+        return entry;
+    }
+
+    /**
+     * @return true if the given file is in the cache and has not expired yet
+     */
+    synchronized boolean contains(String fileName) {
+        Entry entry = entries.get(fileName);
+        return entry != null && entry.expiresAt > System.currentTimeMillis();
+    }
+
+    /**
+     * Marks the given file as most recently used. If it has expired, it is removed from the index
+     * and deleted.
+     *
+     * @return the size of the given file, or -1 if it's not in the cache or has expired
+     */
+    long touch(String fileName) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Entry entry = entries.get(fileName);
+            if (entry == null) {
+                return -1;
+            }
+            if (entry.expiresAt > now) {
+                markUsed(fileName, entry, now);
+                appendToJournal(OP_ACCESS + " " + now + " " + fileName, false);
+                return entry.size;
+            }
+            removeEntry(fileName);
+            appendToJournal(OP_DELETE + " " + fileName, true);
+        }
+
+        stats.recordDiskExpiration(fileName);
+        new File(directory, fileName).delete();
+        return -1;
+    }
+
+    /**
+     * Records that the given file has been (re-)written, and deletes the least recently used files
+     * if that makes the cache exceed its size budget.
+     */
+    void put(String fileName, long size) {
+        long now = System.currentTimeMillis();
+        List<String> evictedFiles;
+        synchronized (this) {
+            putEntry(fileName, new Entry(size, now, now + expirationMillis));
+            appendToJournal(OP_PUT + " " + size + " " + now + " " + (now + expirationMillis)
+                    + " " + fileName, true);
+            evictedFiles = trimToSize();
+        }
+        deleteEvictedFiles(evictedFiles);
+    }
+
+    /**
+     * Removes the given file from the index. This does not delete the file.
+     */
+    synchronized void remove(String fileName) {
+        if (fileName != null && removeEntry(fileName) != null) {
+            appendToJournal(OP_DELETE + " " + fileName, true);
+        }
+    }
+
+    /**
+     * Removes all files from the index. This does not delete any files.
+     */
+    synchronized void clear() {
+        entries.clear();
+        totalBytes = 0;
+        rewriteJournal();
+    }
+
+    /**
+     * Changes the size budget of the cache, deleting the least recently used files if the cache is
+     * currently larger than that.
+     *
+     * @param maxBytes
+     *            the maximum total size of all files, or a value <= 0 for no limit
+     */
+    void setMaxBytes(long maxBytes) {
+        List<String> evictedFiles;
+        synchronized (this) {
+            this.maxBytes = maxBytes;
+            evictedFiles = trimToSize();
+        }
+        deleteEvictedFiles(evictedFiles);
+    }
+
+    synchronized long getMaxBytes() {
+        return maxBytes > 0 ? maxBytes : 0;
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Writes any buffered journal entries to disk.
+     */
+    synchronized void flush() {
+        if (journal != null) {
+            try {
+                journal.flush();
+            } catch (IOException e) {
+                journalFailed(e);
+            }
+        }
+    }
+
+    private List<String> trimToSize() {
+        List<String> evictedFiles = new ArrayList<String>();
+        if (maxBytes <= 0) {
+            return evictedFiles;
+        }
+        Iterator<Map.Entry<String, Entry>> lru = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && lru.hasNext()) {
+            Map.Entry<String, Entry> eldest = lru.next();
+            lru.remove();
+            totalBytes -= eldest.getValue().size;
+            evictedFiles.add(eldest.getKey());
+            appendToJournal(OP_DELETE + " " + eldest.getKey(), false);
+        }
+        return evictedFiles;
+    }
+
+    private void deleteEvictedFiles(List<String> evictedFiles) {
+        for (String fileName : evictedFiles) {
+            // the file may have been re-added in the meantime
+            if (!contains(fileName)) {
+                stats.recordDiskEviction(fileName);
+                new File(directory, fileName).delete();
+            }
+        }
+    }
+
+    private void appendToJournal(String line, boolean flush) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.write(line);
+            journal.write('\n');
+            if (flush) {
+                journal.flush();
+            }
+        } catch (IOException e) {
+            journalFailed(e);
+            return;
+        }
+
+        if (++redundantOps >= MAX_REDUNDANT_OPS && redundantOps >= entries.size()) {
+            rewriteJournal();
+        }
+    }
+
+    private void rewriteJournal() {
+        closeQuietly(journal);
+        journal = null;
+
+        File journalFile = new File(directory, JOURNAL_FILE);
+        File tmpFile = new File(directory, JOURNAL_FILE_TMP);
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                    tmpFile), "UTF-8"), 8192);
+            writer.write(JOURNAL_HEADER);
+            writer.write('\n');
+            // LRU order, so that replaying it restores the access order
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                Entry e = entry.getValue();
+                writer.write(OP_PUT + " " + e.size + " " + e.lastAccess + " " + e.expiresAt + " "
+                        + entry.getKey() + "\n");
+            }
+            writer.close();
+            writer = null;
+
+            if (!tmpFile.renameTo(journalFile)) {
+                throw new IOException("failed renaming " + tmpFile + " to " + journalFile);
+            }
+
+            journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                    journalFile, true), "UTF-8"), 8192);
+            redundantOps = 0;
+        } catch (IOException e) {
+            closeQuietly(writer);
+            journalFailed(e);
+        }
+    }
+
+    private void journalFailed(IOException e) {
+        // we can do without a journal, we just won't remember anything across restarts
+        Log.w(LOG_TAG, "disabling cache journal in " + directory + ": " + e.getMessage());
+        closeQuietly(journal);
+        journal = null;
+        new File(directory, JOURNAL_FILE).delete();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -2,27 +2,254 @@ package com.github.droidfu.cachefu;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
 
 import com.github.droidfu.http.CachedHttpResponse.ResponseData;
 
 /**
- * Allows caching HTTP responses (only status code and payload at the moment) using the features
- * provided by {@link AbstractCache}. The key into the cache will be the request URL used to
- * retrieve the HTTP response in the first place.
+ * Allows caching HTTP responses (status code, headers, payload, and the metadata needed to tell
+ * whether they're still fresh or to revalidate them) using the features provided by
+ * {@link AbstractCache}. The key into the cache will be the request URL used to retrieve the HTTP
+ * response in the first place.
+ * <p>
+ * On disk, each response is kept in a single file, starting with a small versioned header that
+ * holds everything but the body, followed by the body, so that it can be read in one pass.
+ * </p>
+ * <p>
+ * Response bodies can optionally be kept GZIP compressed, in memory as well as on disk (see
+ * {@link #setCompressionEnabled(boolean)}), which for typical JSON or XML payloads cuts their size
+ * by a factor of 5 to 10, at the cost of inflating them whenever they're read.
+ * </p>
  * 
  * @author Matthias Kaeppler
  * 
  */
 public class HttpResponseCache extends AbstractCache<String, ResponseData> {
 
+    // identifies disk cache files written by this class ("dfHC"), followed by the format version
+    private static final int FILE_MAGIC = 0x64664843;
+    private static final int FILE_FORMAT_VERSION = 2;
+
+    // set in the flags of a disk cache file if the body is GZIP compressed (since version 2)
+    private static final int FLAG_COMPRESSED = 1;
+
+    // the offset of the body length in a disk cache file, see writeHeader
+    private static final int BODY_LENGTH_OFFSET = 12;
+
+    /**
+     * Weighs responses by the size of their body in bytes, as it's stored (i.e. compressed, if it
+     * is).
+     */
+    public static final Weigher<ResponseData> BODY_SIZE_WEIGHER = new Weigher<ResponseData>() {
+        public int weigh(ResponseData data) {
+            byte[] body = data.getStoredBody();
+            return body == null ? 0 : body.length;
+        }
+    };
+
+    private volatile boolean compressionEnabled;
+
     public HttpResponseCache(int initialCapacity, long expirationInMinutes, int maxConcurrentThreads) {
         super("HttpCache", initialCapacity, expirationInMinutes, maxConcurrentThreads);
     }
 
+    /**
+     * Sets whether response bodies are kept GZIP compressed. Bodies which were sent GZIP encoded
+     * by the server are kept as they came in, all others are compressed when they're put in the
+     * cache. Either way, they're inflated whenever they're read. Responses cached before this was
+     * enabled are left as they are.
+     * 
+     * @param enabled
+     *            whether to compress response bodies
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        this.compressionEnabled = enabled;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    /**
+     * Caches the given response, compressing its body first if compression is enabled.
+     */
+    @Override
+    public ResponseData put(String url, ResponseData data) {
+        if (compressionEnabled) {
+            data = data.compress();
+        }
+        return super.put(url, data);
+    }
+
+    /**
+     * Bounds the in-memory cache to the given number of bytes of response data, evicting the least
+     * recently used responses when exceeded.
+     * 
+     * @param maxBytes
+     *            the maximum size of all response bodies held in memory, or 0 to let the GC decide
+     */
+    public void setMaxMemoryCacheSize(long maxBytes) {
+        setMaxWeight(maxBytes, BODY_SIZE_WEIGHER);
+    }
+
+    /**
+     * Opens a stream through which a response body can be written to the cache while it's being
+     * read from the network, so that it doesn't have to be buffered in memory first. If the disk
+     * cache is enabled, the body goes straight to a file; otherwise it's collected in memory.
+     * Nothing is cached until {@link ResponseWriter#commit()} is called.
+     * 
+     * @param url
+     *            the request URL
+     * @param metadata
+     *            the status code and metadata of the response; its body is ignored
+     * @return the writer
+     * @throws IOException
+     *             if the disk cache file could not be created
+     */
+    public ResponseWriter openWriter(String url, ResponseData metadata) throws IOException {
+        return new ResponseWriter(url, metadata, false);
+    }
+
+    /**
+     * Like {@link #openWriter(String, ResponseData)}, but for a body that is written GZIP
+     * compressed, e.g. because that's how it came in from the server. It's stored as is. Only use
+     * this if compression is enabled.
+     */
+    public ResponseWriter openCompressedWriter(String url, ResponseData metadata)
+            throws IOException {
+        return new ResponseWriter(url, metadata, true);
+    }
+
+    /**
+     * Writes a single response to the cache. See {@link HttpResponseCache#openWriter}. Closing it
+     * without committing it first discards what has been written.
+     */
+    public final class ResponseWriter extends OutputStream {
+
+        private final String url;
+
+        private final ResponseData metadata;
+
+        private final boolean compressed;
+
+        private final File partialFile;
+
+        private final OutputStream sink;
+
+        // writes to sink, compressing what's written if needed
+        private final OutputStream ostream;
+
+        private int headerLength;
+
+        private boolean closed;
+
+        private ResponseWriter(String url, ResponseData metadata, boolean precompressed)
+                throws IOException {
+            this.url = url;
+            this.compressed = precompressed || compressionEnabled;
+            this.metadata = new ResponseData(metadata, null, compressed);
+            if (isDiskCacheEnabled()) {
+                partialFile = createPartialFile(url);
+                sink = new BufferedOutputStream(new FileOutputStream(partialFile));
+                try {
+                    // the body length is filled in once it's known
+                    DataOutputStream header = new DataOutputStream(sink);
+                    writeHeader(header, this.metadata, -1);
+                    headerLength = header.size();
+                } catch (IOException e) {
+                    closeQuietly(sink);
+                    partialFile.delete();
+                    throw e;
+                }
+            } else {
+                partialFile = null;
+                sink = new ByteArrayOutputStream();
+            }
+            ostream = compressed && !precompressed ? new GZIPOutputStream(sink) : sink;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ostream.write(b);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            ostream.write(buffer, offset, count);
+        }
+
+        /**
+         * Puts what has been written into the cache, replacing any response cached for the same
+         * URL before.
+         * 
+         * @throws IOException
+         *             if the disk cache entry could not be written; nothing is cached then
+         */
+        public synchronized void commit() throws IOException {
+            if (closed) {
+                throw new IOException("writer has already been closed");
+            }
+            closed = true;
+            if (partialFile == null) {
+                // finishes compression, if any
+                ostream.close();
+                byte[] responseBody = ((ByteArrayOutputStream) sink).toByteArray();
+                put(url, new ResponseData(metadata, responseBody, compressed));
+                return;
+            }
+            try {
+                ostream.close();
+                long bodyLength = partialFile.length() - headerLength;
+                if (bodyLength > Integer.MAX_VALUE) {
+                    throw new IOException("response too large to be cached");
+                }
+                RandomAccessFile file = new RandomAccessFile(partialFile, "rw");
+                try {
+                    file.seek(BODY_LENGTH_OFFSET);
+                    file.writeInt((int) bodyLength);
+                } finally {
+                    file.close();
+                }
+            } catch (IOException e) {
+                partialFile.delete();
+                throw e;
+            }
+            commitToDisk(url, partialFile);
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            closeQuietly(ostream);
+            if (partialFile != null) {
+                partialFile.delete();
+            }
+        }
+    }
+
+    private static void closeQuietly(OutputStream ostream) {
+        try {
+            ostream.close();
+        } catch (IOException e) {
+            // we're throwing it away anyway
+        }
+    }
+
     public synchronized void removeAllWithPrefix(String urlPrefix) {
         CacheHelper.removeAllWithStringPrefix(this, urlPrefix);
     }
@@ -34,32 +261,71 @@ public class HttpResponseCache extends AbstractCache<String, ResponseData> {
 
     @Override
     protected ResponseData readValueFromDisk(File file) throws IOException {
-        BufferedInputStream istream = new BufferedInputStream(new FileInputStream(file));
-        long fileSize = file.length();
-        if (fileSize > Integer.MAX_VALUE) {
-            throw new IOException("Cannot read files larger than " + Integer.MAX_VALUE + " bytes");
-        }
-
-        // first byte is the status code
-        int statusCode = istream.read();
+        DataInputStream istream = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (istream.readInt() != FILE_MAGIC) {
+                throw new IOException("not a response cache file: " + file);
+            }
+            int version = istream.readInt();
+            if (version < 1 || version > FILE_FORMAT_VERSION) {
+                throw new IOException("unsupported response cache file version " + version);
+            }
+            int statusCode = istream.readInt();
+            int bodyLength = istream.readInt();
+            if (bodyLength < 0 || bodyLength > file.length()) {
+                throw new IOException("corrupt response cache file: " + file);
+            }
+            int flags = version >= 2 ? istream.readInt() : 0;
+            long responseTime = istream.readLong();
+            long expirationTime = istream.readLong();
+            int headerCount = istream.readInt();
+            if (headerCount < 0 || headerCount > file.length()) {
+                throw new IOException("corrupt response cache file: " + file);
+            }
+            Header[] headers = new Header[headerCount];
+            for (int i = 0; i < headerCount; i++) {
+                headers[i] = new BasicHeader(istream.readUTF(), istream.readUTF());
+            }
 
-        // the remainder is the response data
-        int responseDataLength = (int) fileSize - 1;
+            byte[] responseBody = new byte[bodyLength];
+            istream.readFully(responseBody);
 
-        byte[] responseBody = new byte[responseDataLength];
-        istream.read(responseBody, 0, responseDataLength);
-        istream.close();
-
-        return new ResponseData(statusCode, responseBody);
+            return new ResponseData(statusCode, responseBody, (flags & FLAG_COMPRESSED) != 0,
+                    responseTime, expirationTime, headers);
+        } finally {
+            istream.close();
+        }
     }
 
     @Override
     protected void writeValueToDisk(File file, ResponseData data) throws IOException {
-        BufferedOutputStream ostream = new BufferedOutputStream(new FileOutputStream(file));
-
-        ostream.write(data.getStatusCode());
-        ostream.write(data.getResponseBody());
+        DataOutputStream ostream = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+        try {
+            byte[] responseBody = data.getStoredBody();
+            writeHeader(ostream, data, responseBody.length);
+            ostream.write(responseBody);
+        } finally {
+            ostream.close();
+        }
+    }
 
-        ostream.close();
+    // the body length must come at BODY_LENGTH_OFFSET, so that it can be filled in later
+    private static void writeHeader(DataOutputStream ostream, ResponseData data, int bodyLength)
+            throws IOException {
+        ostream.writeInt(FILE_MAGIC);
+        ostream.writeInt(FILE_FORMAT_VERSION);
+        ostream.writeInt(data.getStatusCode());
+        ostream.writeInt(bodyLength);
+        ostream.writeInt(data.isCompressed() ? FLAG_COMPRESSED : 0);
+        ostream.writeLong(data.getResponseTime());
+        ostream.writeLong(data.getExpirationTime());
+        Header[] headers = data.getHeaders();
+        ostream.writeInt(headers.length);
+        for (Header header : headers) {
+            ostream.writeUTF(header.getName());
+            ostream.writeUTF(header.getValue() == null ? "" : header.getValue());
+        }
     }
 }
@@ -17,10 +17,16 @@ package com.github.droidfu.cachefu;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -28,18 +34,304 @@ import android.graphics.BitmapFactory;
 /**
  * Implements a cache capable of caching image files. It exposes helper methods to immediately
  * access binary image data as {@link Bitmap} objects.
+ * <p>
+ * Since decoding an image is expensive, decoded bitmaps can optionally be kept in a separate
+ * in-memory tier above the binary image data, bounded by the number of bytes taken up by the
+ * bitmaps' pixels (see {@link #setMaxBitmapCacheSize(long)}). Bitmaps evicted from that tier can be
+ * recycled for decoding other images of the same size by means of a {@link BitmapPool}.
+ * </p>
  * 
  * @author Matthias Kaeppler
  * 
  */
 public class ImageCache extends AbstractCache<String, byte[]> {
 
+    /**
+     * Weighs images by the size of their binary data in bytes.
+     */
+    public static final Weigher<byte[]> BYTE_SIZE_WEIGHER = new Weigher<byte[]>() {
+        public int weigh(byte[] imageData) {
+            return imageData.length;
+        }
+    };
+
+    // access ordered decoded images, guarded by itself, as are bitmapBytes and maxBitmapBytes
+    private final LinkedHashMap<String, Bitmap> bitmaps = new LinkedHashMap<String, Bitmap>(16,
+            0.75f, true);
+
+    private long bitmapBytes;
+
+    private long maxBitmapBytes;
+
+    private volatile BitmapPool bitmapPool;
+
+    // separates the URL from the target size in the keys of downsampled bitmaps
+    private static final String SIZE_SEPARATOR = "#";
+
+    // the size of the buffer used to copy streamed image data to disk
+    private static final int STREAM_BUFFER_SIZE = 8 * 1024;
+
     public ImageCache(int initialCapacity, long expirationInMinutes, int maxConcurrentThreads) {
         super("ImageCache", initialCapacity, expirationInMinutes, maxConcurrentThreads);
     }
 
+    /**
+     * Bounds the in-memory cache to the given number of bytes of image data, evicting the least
+     * recently used images when exceeded.
+     * 
+     * @param maxBytes
+     *            the maximum size of all images held in memory, or 0 to let the GC decide
+     */
+    public void setMaxMemoryCacheSize(long maxBytes) {
+        setMaxWeight(maxBytes, BYTE_SIZE_WEIGHER);
+    }
+
+    /**
+     * Keeps up to the given number of bytes worth of decoded bitmaps in memory, so that
+     * {@link #getBitmap(Object)} can return them without decoding the image data again. Bitmaps are
+     * evicted in least recently used order once that bound is exceeded.
+     * 
+     * @param maxBytes
+     *            the maximum number of bytes taken up by the pixels of all decoded bitmaps, or 0 to
+     *            not keep any decoded bitmaps
+     */
+    public void setMaxBitmapCacheSize(long maxBytes) {
+        synchronized (bitmaps) {
+            maxBitmapBytes = maxBytes;
+            trimBitmaps();
+        }
+    }
+
+    /**
+     * @return the number of bytes taken up by the pixels of all decoded bitmaps held in memory
+     */
+    public long getBitmapCacheSize() {
+        synchronized (bitmaps) {
+            return bitmapBytes;
+        }
+    }
+
+    /**
+     * Sets a pool which decoded bitmaps are drawn from, and which bitmaps evicted from the decoded
+     * bitmap tier are returned to. Only use this if your application doesn't hold on to bitmaps
+     * obtained from this cache (e.g. by still displaying them) after they have been evicted, since
+     * their memory will be reused for other images.
+     * 
+     * @param bitmapPool
+     *            the pool, or null to always allocate new bitmaps
+     */
+    public void setBitmapPool(BitmapPool bitmapPool) {
+        this.bitmapPool = bitmapPool;
+    }
+
+    public BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    private static int sizeOf(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private void trimBitmaps() {
+        Iterator<Map.Entry<String, Bitmap>> lru = bitmaps.entrySet().iterator();
+        while (bitmapBytes > maxBitmapBytes && lru.hasNext()) {
+            Map.Entry<String, Bitmap> eldest = lru.next();
+            lru.remove();
+            bitmapBytes -= sizeOf(eldest.getValue());
+            BitmapPool pool = bitmapPool;
+            if (pool != null) {
+                pool.put(eldest.getValue());
+            }
+        }
+    }
+
+    private void putBitmap(String imageUrl, Bitmap bitmap) {
+        synchronized (bitmaps) {
+            if (maxBitmapBytes <= 0) {
+                return;
+            }
+            Bitmap previous = bitmaps.put(imageUrl, bitmap);
+            if (previous != null) {
+                bitmapBytes -= sizeOf(previous);
+            }
+            bitmapBytes += sizeOf(bitmap);
+            trimBitmaps();
+        }
+    }
+
+    // removes all decoded versions of the given image, regardless of their size
+    private void removeBitmap(Object imageUrl) {
+        synchronized (bitmaps) {
+            if (bitmaps.isEmpty()) {
+                return;
+            }
+            String sizedKeyPrefix = imageUrl + SIZE_SEPARATOR;
+            Iterator<Map.Entry<String, Bitmap>> iter = bitmaps.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry<String, Bitmap> entry = iter.next();
+                if (entry.getKey().equals(imageUrl) || entry.getKey().startsWith(sizedKeyPrefix)) {
+                    iter.remove();
+                    bitmapBytes -= sizeOf(entry.getValue());
+                }
+            }
+        }
+    }
+
+    private static String bitmapKeyFor(Object imageUrl, int targetWidth, int targetHeight) {
+        if (targetWidth <= 0 && targetHeight <= 0) {
+            return (String) imageUrl;
+        }
+        return imageUrl + SIZE_SEPARATOR + targetWidth + "x" + targetHeight;
+    }
+
+    /**
+     * Computes the largest power of two by which an image can be scaled down while still being at
+     * least as large as the target size in both dimensions.
+     * 
+     * @param width
+     *            the width of the image
+     * @param height
+     *            the height of the image
+     * @param targetWidth
+     *            the minimum width to scale to, or 0 if any width will do
+     * @param targetHeight
+     *            the minimum height to scale to, or 0 if any height will do
+     * @return the sample size, suitable for {@link BitmapFactory.Options#inSampleSize}
+     */
+    static int computeSampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        if (targetWidth <= 0 && targetHeight <= 0) {
+            return sampleSize;
+        }
+        while ((targetWidth <= 0 || width / (sampleSize * 2) >= targetWidth)
+                && (targetHeight <= 0 || height / (sampleSize * 2) >= targetHeight)) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
     public synchronized void removeAllWithPrefix(String urlPrefix) {
         CacheHelper.removeAllWithStringPrefix(this, urlPrefix);
+        synchronized (bitmaps) {
+            Iterator<Map.Entry<String, Bitmap>> iter = bitmaps.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry<String, Bitmap> entry = iter.next();
+                if (entry.getKey().startsWith(urlPrefix)) {
+                    iter.remove();
+                    bitmapBytes -= sizeOf(entry.getValue());
+                }
+            }
+        }
+    }
+
+    @Override
+    public byte[] put(String imageUrl, byte[] imageData) {
+        byte[] previous = super.put(imageUrl, imageData);
+        // whatever we decoded before is out of date now
+        removeBitmap(imageUrl);
+        return previous;
+    }
+
+    /**
+     * Writes image data to the cache while reading it from the given stream, e.g. while it's being
+     * downloaded. If the disk cache is enabled, the data is streamed straight to disk through a
+     * small fixed-size buffer, so that it never has to be held in memory as a whole; use
+     * {@link #decodeBitmap(String, File, int, int)} to decode it from there. Otherwise, it's read
+     * into memory and cached there, like {@link #put(String, byte[])} does. The stream is not
+     * closed.
+     * 
+     * @param imageUrl
+     *            the image URL
+     * @param istream
+     *            the binary image data
+     * @param expectedLength
+     *            the number of bytes the stream should yield, or -1 if unknown (e.g. for chunked
+     *            HTTP responses)
+     * @return the file the image data has been written to, or null if the disk cache is disabled
+     * @throws IOException
+     *             if reading from the stream or writing to disk fails, or if the stream ends
+     *             before the expected length; nothing will be cached then
+     */
+    public File putStream(String imageUrl, InputStream istream, long expectedLength)
+            throws IOException {
+        if (!isDiskCacheEnabled()) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+                    expectedLength > 0 && expectedLength <= Integer.MAX_VALUE ? (int) expectedLength
+                            : STREAM_BUFFER_SIZE);
+            copy(istream, buffer, expectedLength);
+            put(imageUrl, buffer.toByteArray());
+            return null;
+        }
+
+        File partialFile = createPartialFile(imageUrl);
+        try {
+            OutputStream ostream = new FileOutputStream(partialFile);
+            try {
+                copy(istream, ostream, expectedLength);
+            } finally {
+                ostream.close();
+            }
+        } catch (IOException e) {
+            partialFile.delete();
+            throw e;
+        }
+
+        File file = commitToDisk(imageUrl, partialFile);
+        // whatever we decoded before is out of date now
+        removeBitmap(imageUrl);
+        return file;
+    }
+
+    private static void copy(InputStream istream, OutputStream ostream, long expectedLength)
+            throws IOException {
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        long totalBytesRead = 0;
+        int bytesRead;
+        while ((bytesRead = istream.read(buffer)) != -1) {
+            ostream.write(buffer, 0, bytesRead);
+            totalBytesRead += bytesRead;
+        }
+        if (expectedLength >= 0 && totalBytesRead != expectedLength) {
+            throw new IOException("expected " + expectedLength + " bytes, but got "
+                    + totalBytesRead);
+        }
+    }
+
+    @Override
+    public byte[] removeKey(Object imageUrl) {
+        removeBitmap(imageUrl);
+        return super.removeKey(imageUrl);
+    }
+
+    @Override
+    public void clear() {
+        synchronized (bitmaps) {
+            bitmaps.clear();
+            bitmapBytes = 0;
+        }
+        super.clear();
+    }
+
+    /**
+     * Checks if an image is present in memory, either decoded or as binary image data. This method
+     * ignores the disk cache.
+     */
+    @Override
+    public boolean containsKeyInMemory(Object imageUrl) {
+        synchronized (bitmaps) {
+            if (bitmaps.containsKey(imageUrl)) {
+                return true;
+            }
+        }
+        return super.containsKeyInMemory(imageUrl);
+    }
+
+    /**
+     * Checks if the binary data of an image is present in memory, regardless of which bitmaps have
+     * been decoded from it. This method ignores the disk cache.
+     */
+    public boolean containsImageDataInMemory(Object imageUrl) {
+        return super.containsKeyInMemory(imageUrl);
     }
 
     @Override
@@ -64,12 +356,154 @@ public class ImageCache extends AbstractCache<String, byte[]> {
         return imageData;
     }
 
-    public synchronized Bitmap getBitmap(Object elementKey) {
+    /**
+     * Checks if a decoded bitmap of the given image and target size is held in memory.
+     * 
+     * @param imageUrl
+     *            the image URL
+     * @param targetWidth
+     *            the target width passed when decoding the image, or 0
+     * @param targetHeight
+     *            the target height passed when decoding the image, or 0
+     * @return true if {@link #getBitmap(Object, int, int)} can return without decoding
+     */
+    public boolean containsBitmapInMemory(String imageUrl, int targetWidth, int targetHeight) {
+        synchronized (bitmaps) {
+            return bitmaps.containsKey(bitmapKeyFor(imageUrl, targetWidth, targetHeight));
+        }
+    }
+
+    /**
+     * Reads an image from the cache as a {@link Bitmap}. If a decoded bitmap is held in memory,
+     * this returns it right away; otherwise the image data is read from the cache and decoded.
+     * 
+     * @param elementKey
+     *            the image URL
+     * @return the decoded image, or null if the image is not cached
+     */
+    public Bitmap getBitmap(Object elementKey) {
+        return getBitmap(elementKey, 0, 0);
+    }
+
+    /**
+     * Reads an image from the cache as a {@link Bitmap}, downsampled to roughly the given target
+     * size. See {@link #decodeBitmap(String, byte[], int, int)}.
+     * 
+     * @param elementKey
+     *            the image URL
+     * @param targetWidth
+     *            the width the image will be displayed at, or 0 if unknown
+     * @param targetHeight
+     *            the height the image will be displayed at, or 0 if unknown
+     * @return the decoded image, or null if the image is not cached
+     */
+    public Bitmap getBitmap(Object elementKey, int targetWidth, int targetHeight) {
+        synchronized (bitmaps) {
+            Bitmap bitmap = bitmaps.get(bitmapKeyFor(elementKey, targetWidth, targetHeight));
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+
         byte[] imageData = super.get(elementKey);
         if (imageData == null) {
             return null;
         }
-        return BitmapFactory.decodeByteArray(imageData, 0, imageData.length);
+        return decodeBitmap((String) elementKey, imageData, targetWidth, targetHeight);
+    }
+
+    /**
+     * Decodes the given image data, and keeps the result in memory if decoded bitmaps are being
+     * cached (see {@link #setMaxBitmapCacheSize(long)}). If a {@link BitmapPool} has been set, a
+     * pooled bitmap of matching size will be reused for the result.
+     * 
+     * @param imageUrl
+     *            the image URL
+     * @param imageData
+     *            the binary image data
+     * @return the decoded image, or null if the image data could not be decoded
+     */
+    public Bitmap decodeBitmap(String imageUrl, byte[] imageData) {
+        return decodeBitmap(imageUrl, imageData, 0, 0);
+    }
+
+    /**
+     * Decodes the given image data like {@link #decodeBitmap(String, byte[])}, but if a target
+     * size is given, skips as many pixels as possible while keeping the result at least as large as
+     * that size, which saves both decoding time and memory. Downsampled bitmaps are cached
+     * separately for every target size.
+     * 
+     * @param imageUrl
+     *            the image URL
+     * @param imageData
+     *            the binary image data
+     * @param targetWidth
+     *            the width the image will be displayed at, or 0 if unknown
+     * @param targetHeight
+     *            the height the image will be displayed at, or 0 if unknown
+     * @return the decoded image, or null if the image data could not be decoded
+     */
+    public Bitmap decodeBitmap(String imageUrl, byte[] imageData, int targetWidth,
+            int targetHeight) {
+        return decodeBitmap(imageUrl, imageData, null, targetWidth, targetHeight);
+    }
+
+    /**
+     * Decodes an image file, as returned by {@link #putStream(String, InputStream, long)}, like
+     * {@link #decodeBitmap(String, byte[], int, int)} does. The file is read incrementally, so the
+     * image data is never held in memory as a whole.
+     * 
+     * @param imageUrl
+     *            the image URL
+     * @param imageFile
+     *            the file holding the binary image data
+     * @param targetWidth
+     *            the width the image will be displayed at, or 0 if unknown
+     * @param targetHeight
+     *            the height the image will be displayed at, or 0 if unknown
+     * @return the decoded image, or null if the file could not be decoded
+     */
+    public Bitmap decodeBitmap(String imageUrl, File imageFile, int targetWidth, int targetHeight) {
+        return decodeBitmap(imageUrl, null, imageFile.getAbsolutePath(), targetWidth,
+                targetHeight);
+    }
+
+    // decodes either the image data or, if that's null, the file
+    private Bitmap decodeBitmap(String imageUrl, byte[] imageData, String pathName,
+            int targetWidth, int targetHeight) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        if (targetWidth > 0 || targetHeight > 0) {
+            // only read the image dimensions in this pass
+            options.inJustDecodeBounds = true;
+            if (imageData != null) {
+                BitmapFactory.decodeByteArray(imageData, 0, imageData.length, options);
+            } else {
+                BitmapFactory.decodeFile(pathName, options);
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = computeSampleSize(options.outWidth, options.outHeight,
+                    targetWidth, targetHeight);
+        }
+
+        BitmapPool pool = bitmapPool;
+        Bitmap bitmap;
+        if (imageData != null) {
+            if (pool != null) {
+                bitmap = pool.decode(imageData, options);
+            } else {
+                bitmap = BitmapFactory.decodeByteArray(imageData, 0, imageData.length, options);
+            }
+        } else {
+            if (pool != null) {
+                bitmap = pool.decodeFile(pathName, options);
+            } else {
+                bitmap = BitmapFactory.decodeFile(pathName, options);
+            }
+        }
+        if (bitmap != null) {
+            putBitmap(bitmapKeyFor(imageUrl, targetWidth, targetHeight), bitmap);
+        }
+        return bitmap;
     }
 
     @Override
@@ -0,0 +1,38 @@
+/* Copyright (c) 2009 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.droidfu.cachefu;
+
+/**
+ * Produces a value which is not in the cache yet, e.g. by downloading it. Used by
+ * {@link AbstractCache#get(Object, Loader)}, which makes sure that only one load per key is in
+ * flight at any time.
+ *
+ * @param <KeyT>
+ *            the type of cache keys
+ * @param <ValT>
+ *            the type of values being loaded
+ */
+public interface Loader<KeyT, ValT> {
+
+    /**
+     * @param key
+     *            the cache key
+     * @return the value for the given key, or null if there is none
+     * @throws Exception
+     *             if loading the value failed
+     */
+    public ValT load(KeyT key) throws Exception;
+}
@@ -6,6 +6,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.os.Parcel;
 
@@ -29,15 +30,15 @@ public class ModelCache extends AbstractCache<String, CachedModel> {
     }
 
     // Counter for all saves to cache. Used to determine if newer object in cache
-    private long transactionCount = Long.MIN_VALUE + 1;
+    private final AtomicLong transactionCount = new AtomicLong(Long.MIN_VALUE + 1);
 
     /**
      * @see com.github.droidfu.cachefu.AbstractCache#put(java.lang.Object, java.lang.Object)
      */
     @Override
-    public synchronized CachedModel put(String key, CachedModel value) {
+    public CachedModel put(String key, CachedModel value) {
         // Set transaction id for checking validity against other values with same key
-        value.setTransactionId(transactionCount++);
+        value.setTransactionId(transactionCount.getAndIncrement());
         return super.put(key, value);
     }
 
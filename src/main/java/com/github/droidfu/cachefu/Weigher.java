@@ -0,0 +1,34 @@
+/* Copyright (c) 2009 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.droidfu.cachefu;
+
+/**
+ * Determines how much room a value takes up in the in-memory cache. Used by
+ * {@link AbstractCache#setMaxWeight(long, Weigher)} to bound the memory tier by something more
+ * meaningful than the number of elements, typically the value's size in bytes.
+ *
+ * @param <ValT>
+ *            the type of values being weighed
+ */
+public interface Weigher<ValT> {
+
+    /**
+     * @param value
+     *            the cached value
+     * @return the weight of the value; must not be negative
+     */
+    public int weigh(ValT value);
+}
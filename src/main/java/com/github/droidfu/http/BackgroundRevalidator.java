@@ -0,0 +1,92 @@
+/* Copyright (c) 2009 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.droidfu.http;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.util.Log;
+
+import com.github.droidfu.http.CachedHttpResponse.ResponseData;
+
+/**
+ * Refreshes stale responses in the response cache in the background, while they're still being
+ * served from it. See {@link BetterHttp#setMaxStaleness(long)}.
+ *
+ * @author Matthias Kaeppler
+ */
+final class BackgroundRevalidator {
+
+    // the URLs currently being revalidated; there's no point in doing it twice at once
+    private static final ConcurrentHashMap<String, Boolean> pending =
+            new ConcurrentHashMap<String, Boolean>();
+
+    private BackgroundRevalidator() {
+    }
+
+    /**
+     * Schedules the given stale response for revalidation on the async executor, unless it is
+     * being revalidated already. Once done, the response cache holds either the refreshed or the
+     * new response. If revalidation fails, the stale response is left in place.
+     *
+     * @param request
+     *            the request to revalidate the response with
+     * @param staleData
+     *            the stale response
+     * @return true if the revalidation has been scheduled
+     */
+    static boolean revalidate(BetterHttpRequestBase request, ResponseData staleData) {
+        final String url = request.getRequestUrl();
+        if (pending.putIfAbsent(url, Boolean.TRUE) != null) {
+            return false;
+        }
+        if (staleData.hasValidators()) {
+            request.revalidate(staleData);
+        }
+        try {
+            // like any request sent in the background, it doesn't block a thread between retries
+            new BetterHttpAsyncRequest(request, null) {
+                @Override
+                protected void done() {
+                    try {
+                        get();
+                        Log.d(BetterHttp.LOG_TAG, "Revalidated stale response for " + url);
+                    } catch (ExecutionException e) {
+                        Log.w(BetterHttp.LOG_TAG, "Failed to revalidate stale response for "
+                                + url + ": " + e.getCause().getMessage());
+                    } catch (InterruptedException e) {
+                        // can't happen, we're done already
+                    } finally {
+                        pending.remove(url);
+                    }
+                }
+            }.start();
+            return true;
+        } catch (RejectedExecutionException e) {
+            // the executor is busy; the next request for this URL will try again
+            pending.remove(url);
+            return false;
+        }
+    }
+
+    /**
+     * @return true if a response for the given URL is being revalidated right now
+     */
+    static boolean isRevalidating(String url) {
+        return pending.containsKey(url);
+    }
+}
@@ -3,10 +3,17 @@ package com.github.droidfu.http;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 
 import org.apache.http.Header;
 import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
@@ -14,8 +21,9 @@ import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.HttpVersion;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.conn.params.ConnManagerParams;
-import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.conn.params.ConnRoutePNames;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
@@ -24,11 +32,12 @@ import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.impl.client.AbstractHttpClient;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
 
 import android.content.Context;
@@ -36,10 +45,13 @@ import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Proxy;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import com.github.droidfu.cachefu.AbstractCache;
 import com.github.droidfu.cachefu.HttpResponseCache;
+import com.github.droidfu.http.CachedHttpResponse.ResponseData;
 import com.github.droidfu.http.ssl.EasySSLSocketFactory;
 import com.github.droidfu.support.DiagnosticSupport;
 
@@ -48,12 +60,21 @@ public class BetterHttp {
     static final String LOG_TAG = "BetterHttp";
 
     public static final int DEFAULT_MAX_CONNECTIONS = 4;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = DEFAULT_MAX_CONNECTIONS;
+    public static final long DEFAULT_KEEP_ALIVE_DURATION = 30 * 1000;
+    public static final long DEFAULT_IDLE_CONNECTION_TIMEOUT = 60 * 1000;
     public static final int DEFAULT_SOCKET_TIMEOUT = 30 * 1000;
     public static final String DEFAULT_HTTP_USER_AGENT = "Android/DroidFu";
+    public static final int DEFAULT_MAX_ASYNC_THREADS = DEFAULT_MAX_CONNECTIONS;
+    public static final int DEFAULT_MAX_QUEUED_ASYNC_REQUESTS = 64;
     private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
     private static final String ENCODING_GZIP = "gzip";
 
     private static int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private static int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+    private static volatile long keepAliveDuration = DEFAULT_KEEP_ALIVE_DURATION;
+    private static long idleConnectionTimeout = DEFAULT_IDLE_CONNECTION_TIMEOUT;
+    private static boolean staleCheckingEnabled = true;
     private static int socketTimeout = DEFAULT_SOCKET_TIMEOUT;
     private static String httpUserAgent = DEFAULT_HTTP_USER_AGENT;
 
@@ -63,15 +84,37 @@ public class BetterHttp {
 
     private static HttpResponseCache responseCache;
 
+    private static RetryPolicy retryPolicy = new RetryPolicy();
+
+    // runs requests sent with sendAsync(); created on demand
+    private static Executor asyncExecutor;
+
+    // puts requests sent with sendAsync() back on the async executor once their retry is due;
+    // created on demand
+    private static ScheduledExecutorService retryScheduler;
+
+    private static volatile boolean asyncCallbacksOnMainThread = true;
+
+    private static volatile boolean requestCoalescingEnabled;
+
+    // how long stale responses may be served while they're revalidated; 0 means they may not
+    private static volatile long maxStaleness;
+
+    private static Handler mainThreadHandler;
+
+    // requests executed on the client directly, rather than through send(), get a single retry
+    private static final BetterHttpRequestRetryHandler retryHandler = new BetterHttpRequestRetryHandler(
+            1);
+
     public static void setupHttpClient() {
         BasicHttpParams httpParams = new BasicHttpParams();
 
+        // HttpClient takes the time to wait for a pooled connection from here, not from the
+        // connection manager
         ConnManagerParams.setTimeout(httpParams, socketTimeout);
-        ConnManagerParams.setMaxConnectionsPerRoute(httpParams,
-                new ConnPerRouteBean(maxConnections));
-        ConnManagerParams.setMaxTotalConnections(httpParams, DEFAULT_MAX_CONNECTIONS);
         HttpConnectionParams.setSoTimeout(httpParams, socketTimeout);
         HttpConnectionParams.setTcpNoDelay(httpParams, true);
+        HttpConnectionParams.setStaleCheckingEnabled(httpParams, staleCheckingEnabled);
         HttpProtocolParams.setVersion(httpParams, HttpVersion.HTTP_1_1);
         HttpProtocolParams.setUserAgent(httpParams, httpUserAgent);
 
@@ -86,8 +129,12 @@ public class BetterHttp {
             schemeRegistry.register(new Scheme("https", new EasySSLSocketFactory(), 443));
         }
 
-        ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(httpParams, schemeRegistry);
+        BetterHttpConnectionManager cm = new BetterHttpConnectionManager(schemeRegistry,
+                socketTimeout, maxConnections, maxConnectionsPerRoute);
+        cm.setIdleConnectionTimeout(idleConnectionTimeout);
         httpClient = new DefaultHttpClient(cm, httpParams);
+        httpClient.setHttpRequestRetryHandler(retryHandler);
+        httpClient.setKeepAliveStrategy(new KeepAliveStrategy());
     }
 
     /**
@@ -154,8 +201,22 @@ public class BetterHttp {
         return responseCache;
     }
 
+    // package-private so that tests can put back the cache they found
+    static void setResponseCache(HttpResponseCache responseCache) {
+        BetterHttp.responseCache = responseCache;
+    }
+
     public static void setHttpClient(AbstractHttpClient httpClient) {
         BetterHttp.httpClient = httpClient;
+        httpClient.setHttpRequestRetryHandler(retryHandler);
+    }
+
+    /**
+     * @return the retry handler installed on the HTTP client, which handles the retries of all
+     *         requests
+     */
+    public static BetterHttpRequestRetryHandler getRetryHandler() {
+        return retryHandler;
     }
 
     public static AbstractHttpClient getHttpClient() {
@@ -201,9 +262,38 @@ public class BetterHttp {
         return get(url, false);
     }
 
+    /**
+     * Creates a GET request, which is answered from the response cache if possible. Cached
+     * responses are used as long as they're fresh according to the caching headers they were
+     * served with. Once they're stale, they're revalidated with the server if possible, which
+     * means the body is only downloaded again if it has changed. If a maximum staleness has been
+     * set (see {@link #setMaxStaleness(long)}), stale responses are used, too, while they're
+     * revalidated in the background.
+     * 
+     * @param url
+     *            the request URL
+     * @param cached
+     *            whether to use the response cache
+     * @return the request
+     */
     public static BetterHttpRequest get(String url, boolean cached) {
-        if (cached && responseCache != null && responseCache.containsKey(url)) {
-            return new CachedHttpRequest(url);
+        if (cached && responseCache != null) {
+            ResponseData cachedData = responseCache.get(url);
+            if (cachedData != null) {
+                if (cachedData.isFresh()) {
+                    return new CachedHttpRequest(url, cachedData);
+                }
+                if (maxStaleness > 0 && HttpCachePolicy.mayServeStale(cachedData, maxStaleness)) {
+                    BackgroundRevalidator.revalidate(new HttpGet(getHttpClient(), url,
+                            defaultHeaders), cachedData);
+                    return new CachedHttpRequest(url, cachedData);
+                }
+                if (cachedData.hasValidators()) {
+                    HttpGet request = new HttpGet(getHttpClient(), url, defaultHeaders);
+                    request.revalidate(cachedData);
+                    return request;
+                }
+            }
         }
         return new HttpGet(getHttpClient(), url, defaultHeaders);
     }
@@ -228,8 +318,246 @@ public class BetterHttp {
         return new HttpDelete(getHttpClient(), url, defaultHeaders);
     }
 
-    public static void setMaximumConnections(int maxConnections) {
+    /**
+     * Sets the policy which determines how long to wait before retrying a failed request, and
+     * limits how many requests may be retried in a burst. {@link BetterHttpRequest#send()} waits
+     * out the retry delay on the calling thread, while requests sent in the background, with
+     * {@link BetterHttpRequest#sendAsync()} or to revalidate stale responses, are put back on the
+     * {@link #getAsyncExecutor() async executor} once it has passed, so that they don't occupy a
+     * thread in the meantime.
+     * 
+     * @param retryPolicy
+     *            the retry policy shared by all requests
+     */
+    public static void setRetryPolicy(RetryPolicy retryPolicy) {
+        BetterHttp.retryPolicy = retryPolicy;
+    }
+
+    public static RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Sets the executor on which requests sent with {@link BetterHttpRequest#sendAsync()} are run.
+     * By default, this is a pool of {@link #DEFAULT_MAX_ASYNC_THREADS} threads, which queues up
+     * to {@link #DEFAULT_MAX_QUEUED_ASYNC_REQUESTS} further requests and rejects any beyond that.
+     * Since every running request occupies a connection, there's no point in allowing for more
+     * threads than connections.
+     * 
+     * @param executor
+     *            the executor
+     */
+    public static synchronized void setAsyncExecutor(Executor executor) {
+        asyncExecutor = executor;
+    }
+
+    public static synchronized Executor getAsyncExecutor() {
+        if (asyncExecutor == null) {
+            asyncExecutor = new ThreadPoolExecutor(DEFAULT_MAX_ASYNC_THREADS,
+                    DEFAULT_MAX_ASYNC_THREADS, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(DEFAULT_MAX_QUEUED_ASYNC_REQUESTS));
+        }
+        return asyncExecutor;
+    }
+
+    static synchronized ScheduledExecutorService getRetryScheduler() {
+        if (retryScheduler == null) {
+            retryScheduler = Executors.newSingleThreadScheduledExecutor();
+        }
+        return retryScheduler;
+    }
+
+    /**
+     * @param onMainThread
+     *            whether the {@link BetterHttpCallback}s of asynchronous requests should be called
+     *            on the main (UI) thread, which is the default; otherwise they're called on the
+     *            thread that executed the request
+     */
+    public static void setAsyncCallbacksOnMainThread(boolean onMainThread) {
+        asyncCallbacksOnMainThread = onMainThread;
+    }
+
+    /**
+     * Enables or disables request coalescing, which is disabled by default. If enabled, GET
+     * requests which are sent while an identical one is in flight don't go to the network, but
+     * wait for that request and return a copy of its response, which is also cached only once.
+     * Every request gets a response object of its own, so modifying the JSON object returned by
+     * {@link BetterHttpResponse#getResponseBodyAsJson()} doesn't affect other requests. Requests
+     * are identical if they have the same URL, headers and expected status codes. Settings such
+     * as retries and timeouts are those of the request that goes to the network, and if that one
+     * fails, so do all requests waiting for it. If it's cancelled, it's still sent for the requests
+     * waiting for it. Requests with a streaming response are never coalesced.
+     * 
+     * @param enabled
+     *            whether to coalesce identical GET requests
+     */
+    public static void setRequestCoalescingEnabled(boolean enabled) {
+        requestCoalescingEnabled = enabled;
+    }
+
+    public static boolean isRequestCoalescingEnabled() {
+        return requestCoalescingEnabled;
+    }
+
+    /**
+     * @return the number of requests which were answered with the response to an identical
+     *         request in flight, rather than sent themselves
+     */
+    public static long getCoalescedRequestCount() {
+        return RequestCoalescer.getCoalescedRequestCount();
+    }
+
+    /**
+     * Lets {@link #get(String, boolean)} answer cached requests with responses which have gone
+     * stale, as long as they haven't been stale for longer than the given time, rather than wait
+     * for the server. Meanwhile, the response is revalidated in the background on the
+     * {@link #getAsyncExecutor() async executor}, so that the next request gets the fresh one.
+     * Responses which the server asked to always revalidate (no-cache or must-revalidate) are
+     * never served stale. By default, stale responses aren't served at all.
+     * 
+     * @param maxStaleness
+     *            the time in milliseconds, or 0 to never serve stale responses
+     */
+    public static void setMaxStaleness(long maxStaleness) {
+        BetterHttp.maxStaleness = maxStaleness;
+    }
+
+    public static long getMaxStaleness() {
+        return maxStaleness;
+    }
+
+    /**
+     * Runs the given task on the main thread, if callbacks should be delivered there.
+     * 
+     * @return false if the task has not been posted and should be run right away instead
+     */
+    static boolean postToMainThread(Runnable task) {
+        if (!asyncCallbacksOnMainThread) {
+            return false;
+        }
+        Handler handler;
+        synchronized (BetterHttp.class) {
+            if (mainThreadHandler == null) {
+                mainThreadHandler = new Handler(Looper.getMainLooper());
+            }
+            handler = mainThreadHandler;
+        }
+        return handler.post(task);
+    }
+
+    /**
+     * Sets the maximum number of connections the client keeps open, to all hosts together. This
+     * takes effect right away: if requests are in flight, their connections are closed once
+     * they're done, and requests sent from now on get connections from a pool of the new size.
+     * 
+     * @param maxConnections
+     *            the maximum number of connections, {@link #DEFAULT_MAX_CONNECTIONS} by default
+     */
+    public static synchronized void setMaximumConnections(int maxConnections) {
         BetterHttp.maxConnections = maxConnections;
+        BetterHttpConnectionManager cm = getConnectionManager();
+        if (cm != null) {
+            cm.setPoolSize(maxConnections, maxConnectionsPerRoute);
+        }
+    }
+
+    public static int getMaximumConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Sets the maximum number of connections the client keeps open to a single host. Like
+     * {@link #setMaximumConnections(int)}, this takes effect right away.
+     * 
+     * @param maxConnectionsPerRoute
+     *            the maximum number of connections, {@link #DEFAULT_MAX_CONNECTIONS_PER_ROUTE} by
+     *            default
+     */
+    public static synchronized void setMaximumConnectionsPerRoute(int maxConnectionsPerRoute) {
+        BetterHttp.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        BetterHttpConnectionManager cm = getConnectionManager();
+        if (cm != null) {
+            cm.setPoolSize(maxConnections, maxConnectionsPerRoute);
+        }
+    }
+
+    public static int getMaximumConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    /**
+     * Sets how long a connection is kept open for reuse after a request is done with it. If the
+     * server announces a shorter timeout in its Keep-Alive response header, that's used instead,
+     * since the server will close the connection then anyway.
+     * 
+     * @param keepAliveDuration
+     *            the time in milliseconds, {@link #DEFAULT_KEEP_ALIVE_DURATION} by default
+     */
+    public static void setKeepAliveDuration(long keepAliveDuration) {
+        BetterHttp.keepAliveDuration = keepAliveDuration;
+    }
+
+    public static long getKeepAliveDuration() {
+        return keepAliveDuration;
+    }
+
+    /**
+     * Sets how long a connection may sit unused in the pool before it's closed by a background
+     * thread, which also closes connections whose keep-alive duration has run out. Mobile networks
+     * tend to silently drop idle connections, and reusing such a connection fails the request.
+     * 
+     * @param idleConnectionTimeout
+     *            the time in milliseconds, or 0 to never close idle connections;
+     *            {@link #DEFAULT_IDLE_CONNECTION_TIMEOUT} by default
+     */
+    public static synchronized void setIdleConnectionTimeout(long idleConnectionTimeout) {
+        BetterHttp.idleConnectionTimeout = idleConnectionTimeout;
+        BetterHttpConnectionManager cm = getConnectionManager();
+        if (cm != null) {
+            cm.setIdleConnectionTimeout(idleConnectionTimeout);
+        }
+    }
+
+    public static synchronized long getIdleConnectionTimeout() {
+        return idleConnectionTimeout;
+    }
+
+    /**
+     * Sets whether pooled connections are checked before they're reused, which detects most
+     * connections closed by the server, at the cost of a few milliseconds per request. Enabled
+     * by default.
+     * 
+     * @param enabled
+     *            whether to check connections before reusing them
+     */
+    public static synchronized void setStaleCheckingEnabled(boolean enabled) {
+        BetterHttp.staleCheckingEnabled = enabled;
+        if (httpClient != null) {
+            HttpConnectionParams.setStaleCheckingEnabled(httpClient.getParams(), enabled);
+        }
+    }
+
+    public static synchronized boolean isStaleCheckingEnabled() {
+        return staleCheckingEnabled;
+    }
+
+    /**
+     * @return a snapshot of the state of the connection pool, or null if the client has not been
+     *         set up yet, or if it has been replaced using {@link #setHttpClient}
+     */
+    public static synchronized ConnectionPoolStats getConnectionPoolStats() {
+        BetterHttpConnectionManager cm = getConnectionManager();
+        return cm != null ? cm.getStats() : null;
+    }
+
+    // returns null if there's no client yet, or if it doesn't use our connection manager
+    private static BetterHttpConnectionManager getConnectionManager() {
+        if (httpClient == null) {
+            return null;
+        }
+        ClientConnectionManager cm = httpClient.getConnectionManager();
+        return cm instanceof BetterHttpConnectionManager ? (BetterHttpConnectionManager) cm
+                : null;
     }
 
     /**
@@ -291,6 +619,29 @@ public class BetterHttp {
         }
     }
 
+    /**
+     * Keeps connections alive for {@link BetterHttp#getKeepAliveDuration()}, or for as long as the
+     * server's Keep-Alive header says, whichever is shorter.
+     */
+    static class KeepAliveStrategy implements ConnectionKeepAliveStrategy {
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            long duration = keepAliveDuration;
+            HeaderElementIterator elements = new BasicHeaderElementIterator(response
+                    .headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (elements.hasNext()) {
+                HeaderElement element = elements.nextElement();
+                if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                    try {
+                        duration = Math.min(duration, Long.parseLong(element.getValue()) * 1000);
+                    } catch (NumberFormatException e) {
+                        // ignore it
+                    }
+                }
+            }
+            return duration;
+        }
+    }
+
     /**
      * Simple {@link HttpResponseInterceptor} that inflates response if GZIP encoding header.
      */
@@ -298,6 +649,10 @@ public class BetterHttp {
         public void process(final HttpResponse response, final HttpContext context) {
             // Inflate any responses compressed with gzip
             final HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                // e.g. 304 Not Modified
+                return;
+            }
             final Header encoding = entity.getContentEncoding();
             if (encoding != null) {
                 for (HeaderElement element : encoding.getElements()) {
@@ -319,6 +674,13 @@ public class BetterHttp {
             super(wrapped);
         }
 
+        /**
+         * @return the entity as it came in, i.e. still GZIP compressed
+         */
+        HttpEntity getWrappedEntity() {
+            return wrappedEntity;
+        }
+
         @Override
         public InputStream getContent() throws IOException {
             return new GZIPInputStream(wrappedEntity.getContent());
@@ -0,0 +1,223 @@
+/* Copyright (c) 2009 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.droidfu.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.AbortableHttpRequest;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import com.github.droidfu.http.BetterHttpRequestBase.RetryState;
+import com.github.droidfu.http.RequestCoalescer.Exchange;
+
+/**
+ * A request sent in the background, on the executor returned by
+ * {@link BetterHttp#getAsyncExecutor()}. Cancelling it also aborts the underlying HttpClient
+ * request, so that a thread blocked on the network is freed right away. If identical requests are
+ * waiting for it, though (see {@link RequestCoalescer}), it's still sent on their behalf.
+ * <p>
+ * Every run makes a single attempt at sending the request. If it fails and may be retried, the
+ * request is put back on the executor once the retry delay has passed, rather than waiting for
+ * it on the executor's thread.
+ * </p>
+ * 
+ * @author Matthias Kaeppler
+ */
+class BetterHttpAsyncRequest extends FutureTask<BetterHttpResponse> {
+
+    private final BetterHttpRequest request;
+
+    private final BetterHttpCallback callback;
+
+    // null until the first attempt
+    private RetryState retryState;
+
+    // the exchange identical requests wait for, if this is the request that goes to the network;
+    // read by cancel()
+    private volatile Exchange exchange;
+
+    private String coalescingKey;
+
+    BetterHttpAsyncRequest(final BetterHttpRequest request, BetterHttpCallback callback) {
+        // only requests which aren't sent by attempts, such as cached ones, are run as a whole
+        super(new Callable<BetterHttpResponse>() {
+            public BetterHttpResponse call() throws Exception {
+                return request.send();
+            }
+        });
+        this.request = request;
+        this.callback = callback;
+    }
+
+    /**
+     * Schedules this request for execution.
+     * 
+     * @return this request
+     */
+    BetterHttpAsyncRequest start() {
+        BetterHttp.getAsyncExecutor().execute(this);
+        return this;
+    }
+
+    @Override
+    public void run() {
+        if (!(request instanceof BetterHttpRequestBase)) {
+            super.run();
+            return;
+        }
+        BetterHttpRequestBase request = (BetterHttpRequestBase) this.request;
+        try {
+            if (isCancelled() && !isSentForOthers()) {
+                throw new InterruptedIOException("request cancelled");
+            }
+            if (retryState == null && !begin(request)) {
+                // an identical request is in flight already, which will complete this one
+                return;
+            }
+            BetterHttpResponse response = request.attempt(retryState);
+            if (response != null) {
+                finish(response, null);
+            } else {
+                scheduleRetry(retryState.getRetryDelay());
+            }
+        } catch (Throwable e) {
+            finish(null, e);
+        }
+    }
+
+    /**
+     * Prepares the first attempt at sending the request.
+     * 
+     * @return false if the request doesn't need to be sent, since it's waiting for an identical
+     *         one
+     */
+    private boolean begin(BetterHttpRequestBase request) throws IOException {
+        request.prepareRequest();
+        if (request.isCoalescable()) {
+            String key = request.getCoalescingKey();
+            Exchange exchange = new Exchange();
+            // set before it's registered, so that cancel() can't miss it
+            this.exchange = exchange;
+            this.coalescingKey = key;
+            final Exchange inFlightExchange = RequestCoalescer.register(key, exchange);
+            if (inFlightExchange != null) {
+                this.exchange = null;
+                inFlightExchange.whenDone(new Runnable() {
+                    public void run() {
+                        Throwable error = inFlightExchange.getError();
+                        BetterHttpResponse response = null;
+                        if (error == null) {
+                            try {
+                                response = inFlightExchange.copyResponse();
+                            } catch (IOException e) {
+                                error = e;
+                            }
+                        }
+                        finish(response, error);
+                    }
+                });
+                return false;
+            }
+        }
+        retryState = request.newRetryState();
+        return true;
+    }
+
+    private void scheduleRetry(long delay) {
+        BetterHttp.getRetryScheduler().schedule(new Runnable() {
+            public void run() {
+                try {
+                    BetterHttp.getAsyncExecutor().execute(BetterHttpAsyncRequest.this);
+                } catch (RejectedExecutionException e) {
+                    finish(null, e);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void finish(BetterHttpResponse response, Throwable error) {
+        if (exchange != null) {
+            exchange.complete(response, error);
+            RequestCoalescer.unregister(coalescingKey, exchange);
+        }
+        if (error == null) {
+            set(response);
+        } else {
+            setException(error);
+        }
+    }
+
+    // whether this request has to be sent even though it has been cancelled, since identical
+    // requests are waiting for it
+    private boolean isSentForOthers() {
+        Exchange exchange = this.exchange;
+        return exchange != null && !exchange.isAbandoned();
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        Exchange exchange = this.exchange;
+        if (exchange != null && !exchange.abandon()) {
+            // identical requests are waiting for it, so leave the thread sending it alone
+            return super.cancel(false);
+        }
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+            HttpUriRequest httpRequest = request.unwrap();
+            if (httpRequest instanceof AbortableHttpRequest) {
+                ((AbortableHttpRequest) httpRequest).abort();
+            }
+        }
+        return cancelled;
+    }
+
+    @Override
+    protected void done() {
+        if (callback == null || isCancelled()) {
+            return;
+        }
+        Runnable delivery = new Runnable() {
+            public void run() {
+                deliver();
+            }
+        };
+        if (!BetterHttp.postToMainThread(delivery)) {
+            delivery.run();
+        }
+    }
+
+    private void deliver() {
+        BetterHttpResponse response;
+        try {
+            response = get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            callback.onError(cause instanceof Exception ? (Exception) cause : e);
+            return;
+        } catch (InterruptedException e) {
+            // can't happen, we're done already
+            callback.onError(e);
+            return;
+        }
+        callback.onResponse(response);
+    }
+}
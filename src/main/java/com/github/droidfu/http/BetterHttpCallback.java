@@ -0,0 +1,42 @@
+/* Copyright (c) 2009 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.droidfu.http;
+
+/**
+ * Receives the outcome of a request sent using {@link BetterHttpRequest#sendAsync(BetterHttpCallback)}.
+ * Exactly one of the methods is called, unless the request gets cancelled, in which case none is.
+ * 
+ * @author Matthias Kaeppler
+ */
+public interface BetterHttpCallback {
+
+    /**
+     * Called when the server's response has been received.
+     * 
+     * @param response
+     *            the response
+     */
+    public void onResponse(BetterHttpResponse response);
+
+    /**
+     * Called when the request failed, i.e. when {@link BetterHttpRequest#send()} would have
+     * thrown.
+     * 
+     * @param error
+     *            the exception that caused the request to fail, usually an IOException
+     */
+    public void onError(Exception error);
+}
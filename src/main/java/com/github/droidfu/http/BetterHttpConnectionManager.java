@@ -0,0 +1,302 @@
+/* Copyright (c) 2009 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.droidfu.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.conn.tsccm.AbstractConnPool;
+import org.apache.http.impl.conn.tsccm.ConnPoolByRoute;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+
+import android.util.Log;
+
+/**
+ * The connection manager of the {@link BetterHttp} client. It pools connections just like a
+ * {@link ThreadSafeClientConnManager}, but its size can be changed while requests are in flight,
+ * it can close connections that have been idle for too long from a background thread, and it
+ * keeps track of how busy the pool is.
+ * <p>
+ * HttpClient fixes the size of a pool once it's created, so resizing replaces the pool with a new
+ * one. Connections still in use by requests go back to the old pool, which is shut down once they
+ * have all been returned.
+ * </p>
+ *
+ * @author Matthias Kaeppler
+ */
+class BetterHttpConnectionManager implements ClientConnectionManager {
+
+    private final SchemeRegistry schemeRegistry;
+
+    private final long connectionTimeout;
+
+    private int maxTotalConnections, maxConnectionsPerRoute;
+
+    private volatile Pool pool;
+
+    // pools replaced by a resize, which still have connections in use
+    private final List<Pool> retiredPools = new ArrayList<Pool>();
+
+    // the pool each connection came from, so that it's returned there
+    private final Map<ManagedClientConnection, Pool> connectionPools = Collections
+            .synchronizedMap(new WeakHashMap<ManagedClientConnection, Pool>());
+
+    private final AtomicInteger pendingRequests = new AtomicInteger();
+
+    private final AtomicLong timeoutCount = new AtomicLong();
+
+    private IdleConnectionEvictor evictor;
+
+    /**
+     * @param schemeRegistry
+     *            the supported schemes
+     * @param connectionTimeout
+     *            how long to wait for a connection to become available, in milliseconds
+     * @param maxTotalConnections
+     *            the maximum number of connections
+     * @param maxConnectionsPerRoute
+     *            the maximum number of connections to a single host
+     */
+    BetterHttpConnectionManager(SchemeRegistry schemeRegistry, long connectionTimeout,
+            int maxTotalConnections, int maxConnectionsPerRoute) {
+        this.schemeRegistry = schemeRegistry;
+        this.connectionTimeout = connectionTimeout;
+        this.maxTotalConnections = maxTotalConnections;
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        this.pool = newPool();
+    }
+
+    private Pool newPool() {
+        HttpParams params = new BasicHttpParams();
+        ConnManagerParams.setTimeout(params, connectionTimeout);
+        ConnManagerParams.setMaxTotalConnections(params, maxTotalConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(
+                maxConnectionsPerRoute));
+        return new Pool(params, schemeRegistry);
+    }
+
+    /**
+     * Changes the size of the pool. Requests waiting for a connection keep waiting for one from
+     * the old pool, all others get their connections from the new one.
+     */
+    synchronized void setPoolSize(int maxTotalConnections, int maxConnectionsPerRoute) {
+        if (maxTotalConnections == this.maxTotalConnections
+                && maxConnectionsPerRoute == this.maxConnectionsPerRoute) {
+            return;
+        }
+        Log.d(BetterHttp.LOG_TAG, "Resizing connection pool to " + maxTotalConnections
+                + " connections, " + maxConnectionsPerRoute + " per route");
+        this.maxTotalConnections = maxTotalConnections;
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        retiredPools.add(pool);
+        pool = newPool();
+        closeRetiredPools();
+    }
+
+    /**
+     * Starts or stops closing connections in the background once they have been idle for the
+     * given time, as well as connections whose keep-alive duration has run out.
+     *
+     * @param idleTimeout
+     *            the time in milliseconds, or 0 to leave idle connections open
+     */
+    synchronized void setIdleConnectionTimeout(long idleTimeout) {
+        if (evictor != null) {
+            evictor.interrupt();
+            evictor = null;
+        }
+        if (idleTimeout > 0) {
+            evictor = new IdleConnectionEvictor(idleTimeout);
+            evictor.start();
+        }
+    }
+
+    ConnectionPoolStats getStats() {
+        int leased = 0, idle = 0;
+        int maxTotal, maxPerRoute;
+        synchronized (this) {
+            maxTotal = maxTotalConnections;
+            maxPerRoute = maxConnectionsPerRoute;
+            for (Pool retiredPool : retiredPools) {
+                leased += retiredPool.getLeasedConnections();
+                idle += retiredPool.getIdleConnections();
+            }
+            leased += pool.getLeasedConnections();
+            idle += pool.getIdleConnections();
+        }
+        return new ConnectionPoolStats(maxTotal, maxPerRoute, leased, idle, pendingRequests.get(),
+                timeoutCount.get());
+    }
+
+    public SchemeRegistry getSchemeRegistry() {
+        return schemeRegistry;
+    }
+
+    public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+        final Pool pool = this.pool;
+        final ClientConnectionRequest request = pool.requestConnection(route, state);
+        return new ClientConnectionRequest() {
+            public ManagedClientConnection getConnection(long timeout, TimeUnit tunit)
+                    throws InterruptedException, ConnectionPoolTimeoutException {
+                pendingRequests.incrementAndGet();
+                try {
+                    ManagedClientConnection connection = request.getConnection(timeout, tunit);
+                    connectionPools.put(connection, pool);
+                    return connection;
+                } catch (ConnectionPoolTimeoutException e) {
+                    timeoutCount.incrementAndGet();
+                    throw e;
+                } finally {
+                    pendingRequests.decrementAndGet();
+                }
+            }
+
+            public void abortRequest() {
+                request.abortRequest();
+            }
+        };
+    }
+
+    public void releaseConnection(ManagedClientConnection connection, long validDuration,
+            TimeUnit timeUnit) {
+        Pool pool = connectionPools.remove(connection);
+        (pool != null ? pool : this.pool).releaseConnection(connection, validDuration, timeUnit);
+    }
+
+    public void closeIdleConnections(long idleTime, TimeUnit timeUnit) {
+        pool.closeIdleConnections(idleTime, timeUnit);
+        synchronized (this) {
+            closeRetiredPools();
+        }
+    }
+
+    public void closeExpiredConnections() {
+        pool.closeExpiredConnections();
+        synchronized (this) {
+            closeRetiredPools();
+        }
+    }
+
+    public synchronized void shutdown() {
+        setIdleConnectionTimeout(0);
+        for (Pool retiredPool : retiredPools) {
+            retiredPool.shutdown();
+        }
+        retiredPools.clear();
+        pool.shutdown();
+    }
+
+    // connections returned to a retired pool aren't reused, so close them right away, and shut
+    // the pool down once all of them are closed
+    private void closeRetiredPools() {
+        Iterator<Pool> pools = retiredPools.iterator();
+        while (pools.hasNext()) {
+            Pool retiredPool = pools.next();
+            retiredPool.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+            if (retiredPool.getConnectionsInPool() == 0) {
+                retiredPool.shutdown();
+                pools.remove();
+            }
+        }
+    }
+
+    private class Pool extends ThreadSafeClientConnManager {
+
+        Pool(HttpParams params, SchemeRegistry schemeRegistry) {
+            super(params, schemeRegistry);
+        }
+
+        // HttpClient returns connections to the pool they came from, not to us
+        @Override
+        public void releaseConnection(ManagedClientConnection connection, long validDuration,
+                TimeUnit timeUnit) {
+            super.releaseConnection(connection, validDuration, timeUnit);
+            if (this != BetterHttpConnectionManager.this.pool) {
+                synchronized (BetterHttpConnectionManager.this) {
+                    closeRetiredPools();
+                }
+            }
+        }
+
+        @Override
+        protected AbstractConnPool createConnectionPool(HttpParams params) {
+            return new CountingConnPool(connOperator, params);
+        }
+
+        int getLeasedConnections() {
+            return Math.max(0, getConnectionsInPool() - getIdleConnections());
+        }
+
+        int getIdleConnections() {
+            return ((CountingConnPool) connectionPool).getIdleConnections();
+        }
+    }
+
+    // a pool which tells how many of its connections are idle; since that's only used for
+    // statistics, it's read without taking the pool lock, so it may be slightly off
+    private static class CountingConnPool extends ConnPoolByRoute {
+
+        CountingConnPool(ClientConnectionOperator operator, HttpParams params) {
+            super(operator, params);
+        }
+
+        int getIdleConnections() {
+            return freeConnections.size();
+        }
+    }
+
+    private class IdleConnectionEvictor extends Thread {
+
+        private final long idleTimeout;
+
+        IdleConnectionEvictor(long idleTimeout) {
+            super("BetterHttp idle connection evictor");
+            this.idleTimeout = idleTimeout;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!isInterrupted()) {
+                    Thread.sleep(idleTimeout);
+                    closeExpiredConnections();
+                    closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            }
+        }
+    }
+}
@@ -18,6 +18,8 @@ package com.github.droidfu.http;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
@@ -79,7 +81,8 @@ public interface BetterHttpRequest {
     public BetterHttpRequest retries(int retries);
 
     /**
-     * Set the socket timeout for this specific request.
+     * Set the socket timeout for this specific request. This does not affect any other requests,
+     * even if they're sent at the same time.
      * 
      * @param timeout
      *            the timeout in milliseconds
@@ -87,6 +90,17 @@ public interface BetterHttpRequest {
      */
     public BetterHttpRequest withTimeout(int timeout);
 
+    /**
+     * Set the maximum time this request may take overall, including all retries and the time
+     * spent waiting between them. Once it has passed, no more retries are made, and the timeouts
+     * of further attempts are shortened to the time that's left.
+     * 
+     * @param deadline
+     *            the time in milliseconds, counted from when the request is sent
+     * @return this request
+     */
+    public BetterHttpRequest withDeadline(long deadline);
+
 
     /**
      * Sets the entity to send with this request.
@@ -187,6 +201,17 @@ public interface BetterHttpRequest {
      * @return this builder
      */
     public BetterHttpRequest followRedirects(final boolean follow);
+
+    /**
+     * Sets whether the response body should be streamed rather than buffered. If so, the response
+     * is a {@link BetterHttpStreamingResponse}, whose body is read straight from the connection,
+     * and which is copied to the response cache (if enabled) while being read, so that large
+     * responses never have to be held in memory as a whole. Defaults to {@code false}.
+     * 
+     * @param stream {@code true} to stream the response body
+     * @return this builder
+     */
+    public BetterHttpRequest streaming(final boolean stream);
     
     /**
      * Sends the current request. This method uses a special retry-logic (on top of that employed by
@@ -194,4 +219,31 @@ public interface BetterHttpRequest {
      * Wi-Fi and 3G).
      */
     public BetterHttpResponse send() throws IOException;
+
+    /**
+     * Sends the current request in the background, on the executor returned by
+     * {@link BetterHttp#getAsyncExecutor()}, so that many requests can be in flight without
+     * blocking a thread of the caller's each.
+     * 
+     * @return a future holding the response; {@link Future#get()} throws an ExecutionException
+     *         wrapping whatever {@link #send()} would have thrown. Cancelling it aborts the
+     *         request, unless identical requests are waiting for it (see
+     *         {@link BetterHttp#setRequestCoalescingEnabled(boolean)}).
+     * @throws RejectedExecutionException
+     *             if too many requests are waiting to be sent already
+     */
+    public Future<BetterHttpResponse> sendAsync();
+
+    /**
+     * Sends the current request in the background, like {@link #sendAsync()}, and reports the
+     * outcome to the given callback. By default, the callback is called on the main thread (see
+     * {@link BetterHttp#setAsyncCallbacksOnMainThread(boolean)}).
+     * 
+     * @param callback
+     *            receives the response or error, unless the request is cancelled
+     * @return a future holding the response, which can be used to cancel the request
+     * @throws RejectedExecutionException
+     *             if too many requests are waiting to be sent already
+     */
+    public Future<BetterHttpResponse> sendAsync(BetterHttpCallback callback);
 }
@@ -18,30 +18,41 @@ package com.github.droidfu.http;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.ConnectException;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.AbstractHttpClient;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.json.JSONObject;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.github.droidfu.cachefu.HttpResponseCache;
+import com.github.droidfu.http.BetterHttp.GZIPInflatingEntity;
 import com.github.droidfu.http.CachedHttpResponse.ResponseData;
 
 public abstract class BetterHttpRequestBase implements BetterHttpRequest,
@@ -59,9 +70,9 @@ public abstract class BetterHttpRequestBase implements BetterHttpRequest,
 
     protected int maxRetries = MAX_RETRIES;
 
-    private int oldTimeout; // used to cache the global timeout when changing it for one request
+    private int timeout = -1; // the socket timeout of this request, or -1 to use the client's
 
-    private int executionCount;
+    private long deadline = -1; // the time this request may take overall, or -1 for no limit
     
     protected List<Header> headers;
     
@@ -70,6 +81,11 @@ public abstract class BetterHttpRequestBase implements BetterHttpRequest,
     protected String charset = null;
     
     protected Boolean followRedirects;
+
+    protected boolean streaming;
+
+    // the cached response this request revalidates, if any
+    private ResponseData cachedData;
     
 
     BetterHttpRequestBase(AbstractHttpClient httpClient) {
@@ -101,64 +117,250 @@ public abstract class BetterHttpRequestBase implements BetterHttpRequest,
     }
 
     public BetterHttpRequest withTimeout(int timeout) {
-        oldTimeout = httpClient.getParams().getIntParameter(CoreConnectionPNames.SO_TIMEOUT,
-                BetterHttp.DEFAULT_SOCKET_TIMEOUT);
-        BetterHttp.setSocketTimeout(timeout);
+        this.timeout = timeout;
+        return this;
+    }
+
+    public BetterHttpRequest withDeadline(long deadline) {
+        this.deadline = deadline;
         return this;
     }
 
     public BetterHttpResponse send() throws IOException {
         prepareRequest();
-      
-        BetterHttpRequestRetryHandler retryHandler = new BetterHttpRequestRetryHandler(maxRetries);
-        // tell HttpClient to user our own retry handler
-        httpClient.setHttpRequestRetryHandler(retryHandler);
+        if (isCoalescable()) {
+            long deadlineMillis = deadline < 0 ? -1 : System.currentTimeMillis() + deadline;
+            return RequestCoalescer.send(this, getCoalescingKey(), deadlineMillis);
+        }
+        return execute();
+    }
+
+    /**
+     * @return whether this request may share its response with identical requests, see
+     *         {@link RequestCoalescer}
+     */
+    boolean isCoalescable() {
+        // a live stream can't be shared, and only idempotent requests may be merged
+        return BetterHttp.isRequestCoalescingEnabled() && !streaming
+                && "GET".equals(request.getMethod());
+    }
+
+    /**
+     * Identifies this request for {@link RequestCoalescer}: anything that may make the server
+     * answer differently, or make this request handle the answer differently, goes in here.
+     */
+    String getCoalescingKey() {
+        List<String> headerLines = new ArrayList<String>();
+        for (Header header : request.getAllHeaders()) {
+            headerLines.add(header.getName().toLowerCase() + ": " + header.getValue());
+        }
+        Collections.sort(headerLines);
+        return request.getMethod() + " " + getRequestUrl() + " " + headerLines + " expecting "
+                + expectedStatusCodes;
+    }
+
+    /**
+     * Sends the request right away, whether an identical one is in flight or not. The delay
+     * before every retry is waited out on the calling thread.
+     */
+    BetterHttpResponse execute() throws IOException {
+        RetryState retryState = newRetryState();
+        BetterHttpResponse response;
+        while ((response = attempt(retryState)) == null) {
+            SystemClock.sleep(retryState.getRetryDelay());
+        }
+        return response;
+    }
 
-        HttpContext context = new BasicHttpContext();
+    /**
+     * @return the state of a new sending of this request, to be passed to all its attempts
+     */
+    RetryState newRetryState() {
+        return new RetryState(deadline < 0 ? -1 : System.currentTimeMillis() + deadline);
+    }
+
+    /**
+     * Makes a single attempt at sending this request.
+     * 
+     * @return the response, or null if the attempt failed and the request should be retried
+     *         once {@link RetryState#getRetryDelay()} has passed
+     * @throws IOException
+     *             if the attempt failed and the request mustn't be retried
+     */
+    BetterHttpResponse attempt(RetryState retryState) throws IOException {
+        HttpContext context = retryState.context;
+        context.removeAttribute(BetterHttpRequestRetryHandler.RETRY_DELAY);
+
+        IOException cause;
+        try {
+            applyTimeouts(retryState.deadlineMillis);
+            Log.d(BetterHttp.LOG_TAG, "Sending HTTP request to " + request.getURI());
+            if (streaming) {
+                // HttpClient consumes the entity once a response handler returns, so we
+                // must take the response as is and release the connection ourselves
+                return handleStreamingResponse(httpClient.execute(request, context));
+            }
+            return httpClient.execute(request, this, context);
+        } catch (IOException e) {
+            cause = e;
+        } catch (NullPointerException e) {
+            // there's a bug in HttpClient 4.0.x that on some occasions causes
+            // DefaultRequestExecutor to throw an NPE, see
+            // http://code.google.com/p/android/issues/detail?id=5255
+            cause = new IOException("NPE in HttpClient" + e.getMessage());
+        }
 
         // Grab a coffee now and lean back, I'm not good at explaining stuff. This code realizes
         // a second retry layer on top of HttpClient. Rationale: HttpClient.execute sometimes craps
-        // out even *before* the HttpRequestRetryHandler set above is called, e.g. on a
+        // out even *before* the HttpRequestRetryHandler set on it is called, e.g. on a
         // "Network unreachable" SocketException, which can happen when failing over from Wi-Fi to
         // 3G or vice versa. Hence, we catch these exceptions, feed it through the same retry
         // decision method *again*, and align the execution count along the way.
-        boolean retry = true;
-        IOException cause = null;
-        while (retry) {
-            try {
-                Log.d(BetterHttp.LOG_TAG, "Sending HTTP request to " + request.getURI());
-                return httpClient.execute(request, this, context);
-            } catch (IOException e) {
-                cause = e;
-                retry = retryRequest(retryHandler, cause, context);
-            } catch (NullPointerException e) {
-                // there's a bug in HttpClient 4.0.x that on some occasions causes
-                // DefaultRequestExecutor to throw an NPE, see
-                // http://code.google.com/p/android/issues/detail?id=5255
-                cause = new IOException("NPE in HttpClient" + e.getMessage());
-                retry = retryRequest(retryHandler, cause, context);
-            } finally {
-                // if timeout was changed with this request using withTimeout(), reset it
-                if (oldTimeout != BetterHttp.getSocketTimeout()) {
-                    BetterHttp.setSocketTimeout(oldTimeout);
-                }
+        int handlerCount = BetterHttpRequestRetryHandler.getExecutionCount(context);
+        retryState.executionCount = Math.max(retryState.executionCount, handlerCount);
+        Long retryDelay = (Long) context.getAttribute(BetterHttpRequestRetryHandler.RETRY_DELAY);
+        if (retryDelay == null) {
+            Log.e(BetterHttp.LOG_TAG, "Intercepting exception that wasn't handled by HttpClient");
+            retryState.executionCount++;
+            BetterHttp.getRetryHandler().retryRequest(cause, retryState.executionCount, context);
+            retryDelay = (Long) context.getAttribute(BetterHttpRequestRetryHandler.RETRY_DELAY);
+        }
+
+        if (retryDelay == null || retryDelay < 0) {
+            // no retries left, crap out with exception
+            ConnectException ex = new ConnectException();
+            ex.initCause(cause);
+            throw ex;
+        }
+        retryState.retryDelay = retryDelay;
+        return null;
+    }
+
+    /**
+     * Sets the timeouts of this request on its own parameters, which take precedence over those of
+     * the client, so that other requests aren't affected.
+     */
+    private void applyTimeouts(long deadlineMillis) throws IOException {
+        HttpParams params = request.getParams();
+        if (deadlineMillis < 0) {
+            if (timeout >= 0) {
+                HttpConnectionParams.setSoTimeout(params, timeout);
             }
+            return;
         }
 
-        // no retries left, crap out with exception
-        ConnectException ex = new ConnectException();
-        ex.initCause(cause);
-        throw ex;
+        long remaining = deadlineMillis - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("deadline of " + deadline + "ms exceeded");
+        }
+        int soTimeout = timeout >= 0 ? timeout : httpClient.getParams().getIntParameter(
+                CoreConnectionPNames.SO_TIMEOUT, BetterHttp.DEFAULT_SOCKET_TIMEOUT);
+        if (soTimeout == 0 || soTimeout > remaining) {
+            // 0 means no timeout at all
+            soTimeout = (int) Math.min(remaining, Integer.MAX_VALUE);
+        }
+        HttpConnectionParams.setSoTimeout(params, soTimeout);
+        HttpConnectionParams.setConnectionTimeout(params, soTimeout);
+        // don't wait for a connection from the pool any longer than that either
+        ConnManagerParams.setTimeout(params, remaining);
+    }
+
+    public Future<BetterHttpResponse> sendAsync() {
+        return sendAsync(null);
+    }
+
+    public Future<BetterHttpResponse> sendAsync(BetterHttpCallback callback) {
+        return new BetterHttpAsyncRequest(this, callback).start();
     }
 
-    private boolean retryRequest(BetterHttpRequestRetryHandler retryHandler, IOException cause,
-            HttpContext context) {
-        Log.e(BetterHttp.LOG_TAG, "Intercepting exception that wasn't handled by HttpClient");
-        executionCount = Math.max(executionCount, retryHandler.getTimesRetried());
-        return retryHandler.retryRequest(cause, ++executionCount, context);
+    /**
+     * Turns this request into a conditional request for the given cached response. If the server
+     * answers that it hasn't changed, the cached response is refreshed and returned.
+     */
+    void revalidate(ResponseData cachedData) {
+        this.cachedData = cachedData;
     }
 
     public BetterHttpResponse handleResponse(HttpResponse response) throws IOException {
+        if (isNotModified(response)) {
+            return handleNotModified(response);
+        }
+        checkStatus(response);
+
+        HttpResponseCache responseCache = BetterHttp.getResponseCache();
+        if (responseCache == null) {
+            return new BetterHttpResponseImpl(response);
+        }
+        if (!HttpCachePolicy.isCacheable(request, response)) {
+            responseCache.remove(getRequestUrl());
+            return new BetterHttpResponseImpl(response);
+        }
+
+        ResponseData metadata = HttpCachePolicy.newResponseData(response, null);
+        HttpEntity entity = response.getEntity();
+        if (responseCache.isCompressionEnabled() && entity instanceof GZIPInflatingEntity) {
+            // keep the body as it came in rather than inflating and compressing it again
+            HttpEntity wrapped = ((GZIPInflatingEntity) entity).getWrappedEntity();
+            byte[] gzippedBody = EntityUtils.toByteArray(wrapped);
+            ByteArrayEntity gzipped = new ByteArrayEntity(gzippedBody);
+            gzipped.setContentType(wrapped.getContentType());
+            gzipped.setContentEncoding(wrapped.getContentEncoding());
+            response.setEntity(new GZIPInflatingEntity(gzipped));
+            BetterHttpResponse bhttpr = new BetterHttpResponseImpl(response);
+            responseCache.put(getRequestUrl(), new ResponseData(metadata, gzippedBody, true));
+            return bhttpr;
+        }
+        BetterHttpResponse bhttpr = new BetterHttpResponseImpl(response);
+        responseCache.put(getRequestUrl(), new ResponseData(metadata,
+                bhttpr.getResponseBodyAsBytes()));
+        return bhttpr;
+    }
+
+    private boolean isNotModified(HttpResponse response) {
+        return cachedData != null
+                && response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED;
+    }
+
+    private BetterHttpResponse handleNotModified(HttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            entity.consumeContent();
+        }
+        ResponseData refreshed = HttpCachePolicy.refresh(cachedData, response);
+        HttpResponseCache responseCache = BetterHttp.getResponseCache();
+        if (responseCache != null) {
+            responseCache.put(getRequestUrl(), refreshed);
+        }
+        return new CachedHttpResponse(refreshed);
+    }
+
+    private BetterHttpResponse handleStreamingResponse(HttpResponse response) throws IOException {
+        if (isNotModified(response)) {
+            return handleNotModified(response);
+        }
+        try {
+            checkStatus(response);
+            HttpResponseCache responseCache = BetterHttp.getResponseCache();
+            ResponseData metadata = null;
+            if (responseCache != null) {
+                if (HttpCachePolicy.isCacheable(request, response)) {
+                    metadata = HttpCachePolicy.newResponseData(response, null);
+                } else {
+                    responseCache.remove(getRequestUrl());
+                }
+            }
+            return new BetterHttpStreamingResponse(request, response, responseCache, metadata,
+                    getRequestUrl());
+        } catch (IOException e) {
+            HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                entity.consumeContent();
+            }
+            throw e;
+        }
+    }
+
+    private int checkStatus(HttpResponse response) throws HttpResponseException {
         int status = response.getStatusLine().getStatusCode();
         if (expectedStatusCodes != null && !expectedStatusCodes.isEmpty()) {
           if (!expectedStatusCodes.contains(status)) {
@@ -167,14 +369,7 @@ public abstract class BetterHttpRequestBase implements BetterHttpRequest,
         } else if (status >= 400) { // TODO - Make this configurable & compatible with the old default droid-fu behavior
           throw new HttpResponseException(status, "Error status code: " + status);
         }
-
-        BetterHttpResponse bhttpr = new BetterHttpResponseImpl(response);
-        HttpResponseCache responseCache = BetterHttp.getResponseCache();
-        if (responseCache != null) {
-            ResponseData responseData = new ResponseData(status, bhttpr.getResponseBodyAsBytes());
-            responseCache.put(getRequestUrl(), responseData);
-        }
-        return bhttpr;
+        return status;
     }
     
     public BetterHttpRequest entity(final HttpEntity entity) {
@@ -226,6 +421,11 @@ public abstract class BetterHttpRequestBase implements BetterHttpRequest,
       followRedirects = follow;
       return this;
     }
+
+    public BetterHttpRequest streaming(final boolean stream) {
+      streaming = stream;
+      return this;
+    }
     
     protected List<Header> getHeaders() {
       if (headers == null) {
@@ -247,6 +447,9 @@ public abstract class BetterHttpRequestBase implements BetterHttpRequest,
 
     protected void prepareRequest() throws IOException {
       applyHeaders(request);
+      if (cachedData != null) {
+        HttpCachePolicy.addConditionalHeaders(request, cachedData);
+      }
       if (followRedirects != null) {
         HttpClientParams.setRedirecting(request.getParams(), followRedirects);
       }
@@ -268,5 +471,38 @@ public abstract class BetterHttpRequestBase implements BetterHttpRequest,
         }
       }
     }
-    
+
+    /**
+     * Keeps track of the attempts at sending a request. The retry handler installed on the client
+     * picks up the settings of the request from the context shared by all attempts, so that
+     * concurrent requests don't get in each other's way.
+     */
+    final class RetryState {
+
+        private final HttpContext context = new BasicHttpContext();
+
+        private final long deadlineMillis;
+
+        // HttpClient's own count starts over with every call to execute, so it may go backwards
+        private int executionCount;
+
+        private long retryDelay;
+
+        private RetryState(long deadlineMillis) {
+            this.deadlineMillis = deadlineMillis;
+            context.setAttribute(BetterHttpRequestRetryHandler.MAX_RETRIES, maxRetries);
+            context.setAttribute(BetterHttpRequestRetryHandler.DEFER_RETRIES, Boolean.TRUE);
+            if (deadlineMillis >= 0) {
+                // let the retry handler know when to give up
+                context.setAttribute(BetterHttpRequestRetryHandler.DEADLINE, deadlineMillis);
+            }
+        }
+
+        /**
+         * @return the time in milliseconds to wait before the next attempt
+         */
+        long getRetryDelay() {
+            return retryDelay;
+        }
+    }
 }
@@ -16,10 +16,47 @@ import org.apache.http.protocol.HttpContext;
 import android.os.SystemClock;
 import android.util.Log;
 
+/**
+ * Decides whether a failed request should be retried, and waits before the retry according to
+ * the {@link RetryPolicy}. A single instance is installed on the shared HttpClient, so it keeps
+ * no state of its own: the maximum number of retries of the current request is taken from the
+ * {@link HttpContext} it's executed in, and the number of retries made so far is recorded there.
+ * If the context asks to {@link #DEFER_RETRIES defer retries}, the handler doesn't wait, but
+ * leaves the retry to whoever executes the request.
+ */
 public class BetterHttpRequestRetryHandler implements HttpRequestRetryHandler {
 
-    // TODO: make configurable
-    private static final int RETRY_SLEEP_TIME_MILLIS = 1500;
+    /**
+     * The {@link HttpContext} attribute holding the maximum number of retries (an Integer) for the
+     * request executed in that context. If not set, the handler's default is used.
+     */
+    public static final String MAX_RETRIES = "droidfu.request.max_retries";
+
+    /**
+     * The {@link HttpContext} attribute to which the number of executions of the request so far
+     * (an Integer) is written.
+     */
+    public static final String EXECUTION_COUNT = "droidfu.request.execution_count";
+
+    /**
+     * The {@link HttpContext} attribute holding the time (in milliseconds since the epoch) after
+     * which a request must not be retried anymore, if any.
+     */
+    public static final String DEADLINE = "droidfu.request.deadline";
+
+    /**
+     * The {@link HttpContext} attribute which, if set to {@link Boolean#TRUE}, tells the handler
+     * not to retry the request itself, but to only record the delay before the retry in
+     * {@link #RETRY_DELAY}. This way, the caller can wait for the retry without blocking a thread.
+     */
+    public static final String DEFER_RETRIES = "droidfu.request.defer_retries";
+
+    /**
+     * The {@link HttpContext} attribute to which the handler writes the time in milliseconds to
+     * wait before retrying the request (a Long), or -1 if it shouldn't be retried, if retries are
+     * {@link #DEFER_RETRIES deferred}.
+     */
+    public static final String RETRY_DELAY = "droidfu.request.retry_delay";
 
     private static HashSet<Class<?>> exceptionWhitelist = new HashSet<Class<?>>();
 
@@ -41,16 +78,43 @@ public class BetterHttpRequestRetryHandler implements HttpRequestRetryHandler {
         exceptionBlacklist.add(SSLHandshakeException.class);
     }
 
-    private int maxRetries, timesRetried;
+    private final int maxRetries;
 
+    private final RetryPolicy retryPolicy;
+
+    /**
+     * @param maxRetries
+     *            the number of retries for requests whose context doesn't specify it
+     */
     public BetterHttpRequestRetryHandler(int maxRetries) {
+        this(maxRetries, null);
+    }
+
+    /**
+     * @param maxRetries
+     *            the number of retries for requests whose context doesn't specify it
+     * @param retryPolicy
+     *            the retry policy, or null to use {@link BetterHttp#getRetryPolicy()}
+     */
+    public BetterHttpRequestRetryHandler(int maxRetries, RetryPolicy retryPolicy) {
         this.maxRetries = maxRetries;
+        this.retryPolicy = retryPolicy;
     }
 
     public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
         boolean retry;
 
-        this.timesRetried = executionCount;
+        boolean deferred = Boolean.TRUE.equals(context.getAttribute(DEFER_RETRIES));
+        if (deferred) {
+            // HttpClient counts from 1 again every time the request is executed anew
+            executionCount = Math.max(executionCount, getExecutionCount(context) + 1);
+        }
+        context.setAttribute(EXECUTION_COUNT, executionCount);
+
+        Integer maxRetriesAttribute = (Integer) context.getAttribute(MAX_RETRIES);
+        int maxRetries = maxRetriesAttribute != null ? maxRetriesAttribute : this.maxRetries;
+        RetryPolicy retryPolicy = this.retryPolicy != null ? this.retryPolicy : BetterHttp
+                .getRetryPolicy();
 
         Boolean b = (Boolean) context.getAttribute(ExecutionContext.HTTP_REQ_SENT);
         boolean sent = (b != null && b.booleanValue());
@@ -73,20 +137,46 @@ public class BetterHttpRequestRetryHandler implements HttpRequestRetryHandler {
             retry = false;
         }
 
+        long delay = retry ? retryPolicy.getRetryDelay(executionCount) : 0;
+
+        Long deadline = (Long) context.getAttribute(DEADLINE);
+        if (retry && deadline != null && System.currentTimeMillis() + delay >= deadline) {
+            Log.e(BetterHttp.LOG_TAG, "request deadline would pass before retrying, giving up");
+            retry = false;
+        }
+
+        if (retry && !retryPolicy.acquireRetry()) {
+            // too many requests are failing right now, don't make things worse
+            Log.e(BetterHttp.LOG_TAG, "retry budget exhausted, giving up");
+            retry = false;
+        }
+
         if (retry) {
             Log.e(BetterHttp.LOG_TAG, "request failed (" + exception.getClass().getCanonicalName()
                     + ": " + exception.getMessage() + " / attempt " + executionCount
-                    + "), will retry in " + RETRY_SLEEP_TIME_MILLIS / 1000.0 + " seconds");
-            SystemClock.sleep(RETRY_SLEEP_TIME_MILLIS);
+                    + "), will retry in " + delay / 1000.0 + " seconds");
         } else {
             Log.e(BetterHttp.LOG_TAG, "request failed after " + executionCount + " attempts");
             exception.printStackTrace();
         }
 
+        if (deferred) {
+            context.setAttribute(RETRY_DELAY, retry ? delay : -1L);
+            return false;
+        }
+        if (retry) {
+            SystemClock.sleep(delay);
+        }
         return retry;
     }
 
-    public int getTimesRetried() {
-        return timesRetried;
+    /**
+     * @param context
+     *            the context a request has been executed in
+     * @return how often the request has been executed, as far as this handler has seen
+     */
+    public static int getExecutionCount(HttpContext context) {
+        Integer executionCount = (Integer) context.getAttribute(EXECUTION_COUNT);
+        return executionCount != null ? executionCount : 0;
     }
 }
@@ -0,0 +1,197 @@
+/* Copyright (c) 2009 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.droidfu.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.github.droidfu.cachefu.HttpResponseCache;
+import com.github.droidfu.cachefu.HttpResponseCache.ResponseWriter;
+import com.github.droidfu.http.BetterHttp.GZIPInflatingEntity;
+import com.github.droidfu.http.CachedHttpResponse.ResponseData;
+
+/**
+ * A response whose body is not buffered, but read straight from the connection. Use this for large
+ * responses that can be processed as a stream, so that they never have to be held in memory as a
+ * whole. See {@link BetterHttpRequest#streaming(boolean)}.
+ * <p>
+ * The body can only be read once: either as a stream using {@link #getResponseBody()}, which must
+ * be closed when done in order to release the connection, or by means of one of the other
+ * accessors, which read it into memory and release the connection right away. If the response
+ * cache is enabled, the body is copied to the cache while it's being read.
+ * </p>
+ *
+ * @author Matthias Kaeppler
+ */
+public class BetterHttpStreamingResponse implements BetterHttpResponse {
+
+    private HttpResponse response;
+    private HttpUriRequest request;
+    private HttpEntity entity;
+    private InputStream content;
+    private ResponseWriter cacheWriter;
+    private byte[] responseBody;
+    private JSONObject responseJson;
+
+    /**
+     * @param responseCache
+     *            the cache to copy the response to, or null to not cache it
+     * @param metadata
+     *            the metadata to cache the response with
+     */
+    BetterHttpStreamingResponse(HttpUriRequest request, HttpResponse response,
+            HttpResponseCache responseCache, ResponseData metadata, String url)
+            throws IOException {
+        this.request = request;
+        this.response = response;
+        this.entity = response.getEntity();
+        if (entity == null) {
+            return;
+        }
+        if (responseCache != null && metadata != null) {
+            try {
+                if (responseCache.isCompressionEnabled() && entity instanceof GZIPInflatingEntity) {
+                    // cache the body as it comes in, and inflate it on top of that
+                    HttpEntity gzipped = ((GZIPInflatingEntity) entity).getWrappedEntity();
+                    cacheWriter = responseCache.openCompressedWriter(url, metadata);
+                    content = inflate(new CachingInputStream(gzipped.getContent(), cacheWriter,
+                            gzipped.getContentLength()));
+                } else {
+                    cacheWriter = responseCache.openWriter(url, metadata);
+                    content = new CachingInputStream(entity.getContent(), cacheWriter,
+                            entity.getContentLength());
+                }
+                return;
+            } catch (IOException e) {
+                // still worth reading the response, we just won't cache it
+                if (cacheWriter != null) {
+                    cacheWriter.close();
+                    cacheWriter = null;
+                }
+            }
+        }
+        content = entity.getContent();
+    }
+
+    private static InputStream inflate(final CachingInputStream gzipped) throws IOException {
+        return new GZIPInputStream(gzipped) {
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                int n = super.read(buffer, offset, count);
+                if (n == -1) {
+                    // the inflater may have stopped short of the end of the compressed stream, but
+                    // it must be read to the end to be cached
+                    gzipped.finish();
+                }
+                return n;
+            }
+        };
+    }
+
+    public HttpResponse unwrap() {
+        return response;
+    }
+
+    /**
+     * @return the live stream over the connection; close it when done, even if it wasn't read to
+     *         the end
+     * @throws IllegalStateException
+     *             if the body has already been read
+     */
+    public synchronized InputStream getResponseBody() throws IOException {
+        if (responseBody != null) {
+            return new ByteArrayInputStream(responseBody);
+        }
+        if (content == null) {
+            if (entity == null) {
+                return new ByteArrayInputStream(new byte[0]);
+            }
+            throw new IllegalStateException("the response body has already been read");
+        }
+        InputStream istream = content;
+        content = null;
+        return istream;
+    }
+
+    public synchronized byte[] getResponseBodyAsBytes() throws IOException {
+        if (responseBody == null) {
+            long length = entity == null ? 0 : entity.getContentLength();
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+                    length >= 0 && length <= Integer.MAX_VALUE ? (int) length : 4096);
+            InputStream istream = getResponseBody();
+            try {
+                byte[] chunk = new byte[4096];
+                int n;
+                while ((n = istream.read(chunk)) != -1) {
+                    buffer.write(chunk, 0, n);
+                }
+            } finally {
+                istream.close();
+            }
+            responseBody = buffer.toByteArray();
+        }
+        return responseBody;
+    }
+
+    public String getResponseBodyAsString() throws IOException {
+        String charset = entity == null ? null : EntityUtils.getContentCharSet(entity);
+        if (charset == null) {
+            charset = HTTP.DEFAULT_CONTENT_CHARSET;
+        }
+        return new String(getResponseBodyAsBytes(), charset);
+    }
+
+    public JSONObject getResponseBodyAsJson() throws IOException, JSONException {
+        if (responseJson == null) {
+            responseJson = new JSONObject(getResponseBodyAsString());
+        }
+        return responseJson;
+    }
+
+    public int getStatusCode() {
+        return this.response.getStatusLine().getStatusCode();
+    }
+
+    public String getHeader(String header) {
+        if (!response.containsHeader(header)) {
+            return null;
+        }
+        return response.getFirstHeader(header).getValue();
+    }
+
+    /**
+     * Releases the connection without reading the rest of the body. This is cheaper than closing
+     * the stream returned by {@link #getResponseBody()} if a lot of the body is left, since that
+     * reads it to the end so that the connection can be reused. The response won't be cached.
+     */
+    public void abort() {
+        request.abort();
+        if (cacheWriter != null) {
+            cacheWriter.close();
+        }
+    }
+}
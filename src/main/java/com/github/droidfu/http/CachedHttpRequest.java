@@ -3,6 +3,7 @@ package com.github.droidfu.http;
 import java.io.IOException;	
 import java.io.UnsupportedEncodingException;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
@@ -10,14 +11,23 @@ import org.apache.http.NameValuePair;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.json.JSONObject;
 
+import com.github.droidfu.http.CachedHttpResponse.ResponseData;
+
 public class CachedHttpRequest implements BetterHttpRequest {
 
     private String url;
 
+    private ResponseData cachedData;
+
     public CachedHttpRequest(String url) {
         this.url = url;
     }
 
+    CachedHttpRequest(String url, ResponseData cachedData) {
+        this.url = url;
+        this.cachedData = cachedData;
+    }
+
     public String getRequestUrl() {
         return url;
     }
@@ -31,9 +41,20 @@ public class CachedHttpRequest implements BetterHttpRequest {
     }
 
     public BetterHttpResponse send() throws IOException {
+        if (cachedData != null) {
+            return new CachedHttpResponse(cachedData);
+        }
         return new CachedHttpResponse(url);
     }
 
+    public Future<BetterHttpResponse> sendAsync() {
+        return sendAsync(null);
+    }
+
+    public Future<BetterHttpResponse> sendAsync(BetterHttpCallback callback) {
+        return new BetterHttpAsyncRequest(this, callback).start();
+    }
+
     public HttpUriRequest unwrap() {
         return null;
     }
@@ -42,6 +63,10 @@ public class CachedHttpRequest implements BetterHttpRequest {
         return this;
     }
 
+    public BetterHttpRequest withDeadline(long deadline) {
+        return this;
+    }
+
     public BetterHttpRequest entity(final HttpEntity entity) {
       throw new UnsupportedOperationException(
                       "This HTTP-method doesn't support to add an entity.");
@@ -86,4 +111,8 @@ public class CachedHttpRequest implements BetterHttpRequest {
     @Override public BetterHttpRequest followRedirects(boolean follow) {
       return this;
     }
+
+    @Override public BetterHttpRequest streaming(boolean stream) {
+      return this;
+    }
 }
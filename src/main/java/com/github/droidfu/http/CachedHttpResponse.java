@@ -1,10 +1,21 @@
 package com.github.droidfu.http;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.NameValuePair;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHeaderValueParser;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HTTP;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -18,46 +29,241 @@ import com.github.droidfu.cachefu.HttpResponseCache;
 public class CachedHttpResponse implements BetterHttpResponse {
 
     public static final class ResponseData {
+
+        private static final Header[] NO_HEADERS = new Header[0];
+
+        /**
+         * Creates a response which is considered fresh for as long as it's held in the cache.
+         */
         public ResponseData(int statusCode, byte[] responseBody) {
+            this(statusCode, responseBody, System.currentTimeMillis(), Long.MAX_VALUE, NO_HEADERS);
+        }
+
+        /**
+         * Creates a response with an uncompressed body.
+         * 
+         * @see #ResponseData(int, byte[], boolean, long, long, Header[])
+         */
+        public ResponseData(int statusCode, byte[] responseBody, long responseTime,
+                long expirationTime, Header[] headers) {
+            this(statusCode, responseBody, false, responseTime, expirationTime, headers);
+        }
+
+        /**
+         * @param statusCode
+         *            the HTTP status code
+         * @param responseBody
+         *            the response body as it's stored
+         * @param compressed
+         *            whether the body is stored GZIP compressed; it's inflated whenever it's
+         *            read through {@link #getResponseBody()}
+         * @param responseTime
+         *            when the response was received (or last revalidated), in milliseconds since
+         *            the epoch
+         * @param expirationTime
+         *            when the response becomes stale and must be revalidated before being used,
+         *            in milliseconds since the epoch
+         * @param headers
+         *            the response headers worth keeping, see {@link HttpCachePolicy}
+         */
+        public ResponseData(int statusCode, byte[] responseBody, boolean compressed,
+                long responseTime, long expirationTime, Header[] headers) {
             this.statusCode = statusCode;
             this.responseBody = responseBody;
+            this.compressed = compressed;
+            this.responseTime = responseTime;
+            this.expirationTime = expirationTime;
+            this.headers = headers;
+        }
+
+        /**
+         * Creates a response with the same metadata as the given one, but a different body.
+         */
+        public ResponseData(ResponseData metadata, byte[] responseBody) {
+            this(metadata, responseBody, false);
+        }
+
+        /**
+         * Creates a response with the same metadata as the given one, but a different body, which
+         * may be GZIP compressed.
+         */
+        public ResponseData(ResponseData metadata, byte[] responseBody, boolean compressed) {
+            this(metadata.statusCode, responseBody, compressed, metadata.responseTime,
+                    metadata.expirationTime, metadata.headers);
         }
 
         private int statusCode;
         private byte[] responseBody;
+        private boolean compressed;
+        private long responseTime;
+        private long expirationTime;
+        private Header[] headers;
 
         public int getStatusCode() {
             return statusCode;
         }
 
+        /**
+         * @return the response body, which is inflated first if it's stored compressed; since
+         *         that's done on every call, hold on to the result if you need it more than once
+         */
         public byte[] getResponseBody() {
+            if (!compressed) {
+                return responseBody;
+            }
+            try {
+                GZIPInputStream istream = new GZIPInputStream(new ByteArrayInputStream(
+                        responseBody));
+                ByteArrayOutputStream inflated = new ByteArrayOutputStream(responseBody.length * 4);
+                byte[] buffer = new byte[4096];
+                int n;
+                while ((n = istream.read(buffer)) != -1) {
+                    inflated.write(buffer, 0, n);
+                }
+                return inflated.toByteArray();
+            } catch (IOException e) {
+                throw new IllegalStateException("corrupt compressed response body", e);
+            }
+        }
+
+        /**
+         * @return the response body as it's stored, i.e. GZIP compressed if
+         *         {@link #isCompressed()}
+         */
+        public byte[] getStoredBody() {
             return responseBody;
         }
+
+        public boolean isCompressed() {
+            return compressed;
+        }
+
+        /**
+         * @return this response with its body GZIP compressed, or this response itself if it
+         *         already is
+         */
+        public ResponseData compress() {
+            if (compressed) {
+                return this;
+            }
+            try {
+                ByteArrayOutputStream deflated = new ByteArrayOutputStream(
+                        responseBody.length / 4 + 64);
+                GZIPOutputStream ostream = new GZIPOutputStream(deflated);
+                ostream.write(responseBody);
+                ostream.close();
+                return new ResponseData(this, deflated.toByteArray(), true);
+            } catch (IOException e) {
+                // can't happen when writing to memory
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public long getResponseTime() {
+            return responseTime;
+        }
+
+        public long getExpirationTime() {
+            return expirationTime;
+        }
+
+        public Header[] getHeaders() {
+            return headers;
+        }
+
+        /**
+         * @param name
+         *            the header name, which is matched case-insensitively
+         * @return the value of the first header with the given name, or null if there is none
+         */
+        public String getHeader(String name) {
+            for (Header header : headers) {
+                if (header.getName().equalsIgnoreCase(name)) {
+                    return header.getValue();
+                }
+            }
+            return null;
+        }
+
+        public String getETag() {
+            return getHeader(HttpCachePolicy.HEADER_ETAG);
+        }
+
+        public String getLastModified() {
+            return getHeader(HttpCachePolicy.HEADER_LAST_MODIFIED);
+        }
+
+        /**
+         * @return the charset given in the Content-Type header, or the HTTP default (ISO-8859-1)
+         */
+        public String getCharset() {
+            String contentType = getHeader(HTTP.CONTENT_TYPE);
+            if (contentType != null) {
+                for (HeaderElement element : BasicHeaderValueParser.parseElements(contentType,
+                        null)) {
+                    NameValuePair charset = element.getParameterByName("charset");
+                    if (charset != null && charset.getValue() != null) {
+                        return charset.getValue();
+                    }
+                }
+            }
+            return HTTP.DEFAULT_CONTENT_CHARSET;
+        }
+
+        /**
+         * @return true if the response may be used without asking the server first
+         */
+        public boolean isFresh() {
+            return System.currentTimeMillis() < expirationTime;
+        }
+
+        /**
+         * @return true if the response can be revalidated with a conditional request
+         */
+        public boolean hasValidators() {
+            return getETag() != null || getLastModified() != null;
+        }
     }
 
     private HttpResponseCache responseCache;
 
     private ResponseData cachedData;
 
+    private byte[] responseBody;
+
+    private HttpResponse response;
+
     public CachedHttpResponse(String url) {
         responseCache = BetterHttp.getResponseCache();
         cachedData = responseCache.get(url);
     }
 
+    CachedHttpResponse(ResponseData cachedData) {
+        this.cachedData = cachedData;
+    }
+
     public String getHeader(String header) {
-        return null;
+        return cachedData.getHeader(header);
+    }
+
+    private synchronized byte[] getBody() {
+        if (responseBody == null) {
+            // inflates the body if it's stored compressed, so only do it once
+            responseBody = cachedData.getResponseBody();
+        }
+        return responseBody;
     }
 
     public InputStream getResponseBody() throws IOException {
-        return new ByteArrayInputStream(cachedData.responseBody);
+        return new ByteArrayInputStream(getBody());
     }
 
     public byte[] getResponseBodyAsBytes() throws IOException {
-        return cachedData.responseBody;
+        return getBody();
     }
 
     public String getResponseBodyAsString() throws IOException {
-        return new String(cachedData.responseBody);
+        return new String(getBody(), cachedData.getCharset());
     }
 
     public JSONObject getResponseBodyAsJson() throws IOException, JSONException {
@@ -68,8 +274,18 @@ public class CachedHttpResponse implements BetterHttpResponse {
         return cachedData.statusCode;
     }
 
-    public HttpResponse unwrap() {
-        return null;
+    /**
+     * @return a response rebuilt from the cached status code, headers and body
+     */
+    public synchronized HttpResponse unwrap() {
+        if (response == null) {
+            response = new BasicHttpResponse(HttpVersion.HTTP_1_1, cachedData.statusCode, null);
+            response.setHeaders(cachedData.headers);
+            ByteArrayEntity entity = new ByteArrayEntity(getBody());
+            entity.setContentType(cachedData.getHeader(HTTP.CONTENT_TYPE));
+            response.setEntity(entity);
+        }
+        return response;
     }
 
 }
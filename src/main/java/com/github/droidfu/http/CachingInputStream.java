@@ -0,0 +1,159 @@
+/* Copyright (c) 2009 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.droidfu.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.util.Log;
+
+import com.github.droidfu.cachefu.HttpResponseCache.ResponseWriter;
+
+/**
+ * Copies everything read from a response body to the response cache. The response is only cached
+ * if the body is read to the end; if the stream is closed before that, or if writing to the cache
+ * fails, it's discarded, but reading from the stream carries on unaffected.
+ *
+ * @author Matthias Kaeppler
+ */
+class CachingInputStream extends FilterInputStream {
+
+    private ResponseWriter writer;
+
+    private final long expectedLength;
+
+    private long bytesRead;
+
+    /**
+     * @param istream
+     *            the response body
+     * @param writer
+     *            the cache writer to copy the body to
+     * @param expectedLength
+     *            the length of the body, or -1 if unknown
+     */
+    CachingInputStream(InputStream istream, ResponseWriter writer, long expectedLength) {
+        super(istream);
+        this.writer = writer;
+        this.expectedLength = expectedLength;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b == -1) {
+            commit();
+        } else if (writer != null) {
+            try {
+                writer.write(b);
+                bytesRead++;
+            } catch (IOException e) {
+                discard(e);
+            }
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        int n = super.read(buffer, offset, count);
+        if (n == -1) {
+            commit();
+        } else if (writer != null) {
+            try {
+                writer.write(buffer, offset, n);
+                bytesRead += n;
+            } catch (IOException e) {
+                discard(e);
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (writer == null) {
+            return super.skip(n);
+        }
+        // skipped bytes must make it to the cache, too
+        byte[] buffer = new byte[(int) Math.min(n, 4096)];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+            if (read == -1) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    /**
+     * Reads the rest of the stream, so that it's cached. Use this if whoever reads the stream may
+     * stop just short of its end.
+     */
+    void finish() throws IOException {
+        if (writer != null) {
+            skip(Long.MAX_VALUE);
+        }
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readLimit) {
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+        super.close();
+    }
+
+    private void commit() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            if (expectedLength >= 0 && bytesRead != expectedLength) {
+                throw new IOException("expected " + expectedLength + " bytes, but got "
+                        + bytesRead);
+            }
+            writer.commit();
+            writer = null;
+        } catch (IOException e) {
+            discard(e);
+        }
+    }
+
+    private void discard(IOException cause) {
+        Log.w(BetterHttp.LOG_TAG, "not caching response: " + cause.getMessage());
+        writer.close();
+        writer = null;
+    }
+}
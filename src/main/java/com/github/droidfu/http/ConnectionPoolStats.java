@@ -0,0 +1,101 @@
+/* Copyright (c) 2009 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.droidfu.http;
+
+/**
+ * An immutable snapshot of the state of the connection pool of the {@link BetterHttp} client, as
+ * returned by {@link BetterHttp#getConnectionPoolStats()}.
+ *
+ * @author Matthias Kaeppler
+ */
+public final class ConnectionPoolStats {
+
+    private final int maxTotalConnections;
+    private final int maxConnectionsPerRoute;
+    private final int leasedConnections;
+    private final int idleConnections;
+    private final int pendingRequests;
+    private final long timeoutCount;
+
+    ConnectionPoolStats(int maxTotalConnections, int maxConnectionsPerRoute,
+            int leasedConnections, int idleConnections, int pendingRequests, long timeoutCount) {
+        this.maxTotalConnections = maxTotalConnections;
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        this.leasedConnections = leasedConnections;
+        this.idleConnections = idleConnections;
+        this.pendingRequests = pendingRequests;
+        this.timeoutCount = timeoutCount;
+    }
+
+    /**
+     * @return the maximum number of connections the pool may hold
+     */
+    public int getMaxTotalConnections() {
+        return maxTotalConnections;
+    }
+
+    /**
+     * @return the maximum number of connections the pool may hold to a single host
+     */
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    /**
+     * @return the number of connections currently in use by requests
+     */
+    public int getLeasedConnections() {
+        return leasedConnections;
+    }
+
+    /**
+     * @return the number of open connections currently kept alive for reuse
+     */
+    public int getIdleConnections() {
+        return idleConnections;
+    }
+
+    /**
+     * @return the number of requests currently waiting for a connection to become available
+     */
+    public int getPendingRequests() {
+        return pendingRequests;
+    }
+
+    /**
+     * @return the number of requests which gave up waiting for a connection, since the client was
+     *         created
+     */
+    public long getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    /**
+     * @return the ratio of connections in use to the maximum number of connections; this may
+     *         briefly exceed 1.0 after the pool has been shrunk
+     */
+    public double getUtilization() {
+        return maxTotalConnections == 0 ? 0.0 : (double) leasedConnections / maxTotalConnections;
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionPoolStats[maxTotal=" + maxTotalConnections + ", maxPerRoute="
+                + maxConnectionsPerRoute + ", leased=" + leasedConnections + ", idle="
+                + idleConnections + ", pending=" + pendingRequests + ", timeouts="
+                + timeoutCount + "]";
+    }
+}
@@ -0,0 +1,267 @@
+/* Copyright (c) 2009 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.droidfu.http;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+import com.github.droidfu.http.CachedHttpResponse.ResponseData;
+
+/**
+ * Interprets the caching headers of HTTP responses (Cache-Control, Expires, ETag and
+ * Last-Modified) to decide whether and for how long a response may be served from the
+ * {@link com.github.droidfu.cachefu.HttpResponseCache}, and how to revalidate it once it's stale.
+ * <p>
+ * Responses that carry no caching headers at all are considered fresh for as long as they're
+ * held in the cache, which is how the cache has always treated them.
+ * </p>
+ *
+ * @author Matthias Kaeppler
+ */
+final class HttpCachePolicy {
+
+    static final String HEADER_CACHE_CONTROL = "Cache-Control";
+    static final String HEADER_EXPIRES = "Expires";
+    static final String HEADER_DATE = "Date";
+    static final String HEADER_AGE = "Age";
+    static final String HEADER_ETAG = "ETag";
+    static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    // headers which only concern the connection or the encoding on the wire, or which shouldn't
+    // be persisted, and which hence aren't kept along with cached responses
+    private static final Set<String> UNCACHED_HEADERS = new HashSet<String>(Arrays.asList(
+            "connection", "keep-alive", "proxy-authenticate", "proxy-authorization", "te",
+            "trailer", "transfer-encoding", "upgrade", "content-length", "content-encoding",
+            "set-cookie", "set-cookie2"));
+
+    // if a response only has a Last-Modified date, it's considered fresh for this fraction of
+    // the time that passed since it was last modified, as suggested by RFC 2616, 13.2.4
+    private static final double HEURISTIC_FRESHNESS_FACTOR = 0.1;
+
+    private HttpCachePolicy() {
+    }
+
+    /**
+     * @return true if the response to the given request may be stored in the cache; if not, any
+     *         response cached for the same URL should be dropped
+     */
+    static boolean isCacheable(HttpUriRequest request, HttpResponse response) {
+        if (!"GET".equals(request.getMethod())) {
+            return false;
+        }
+        return !hasCacheDirective(response, "no-store");
+    }
+
+    /**
+     * Creates the cache entry for the given response, which was received just now.
+     */
+    static ResponseData newResponseData(HttpResponse response, byte[] responseBody) {
+        long now = System.currentTimeMillis();
+        String eTag = getHeader(response, HEADER_ETAG);
+        String lastModified = getHeader(response, HEADER_LAST_MODIFIED);
+        long expirationTime = getExplicitExpirationTime(response, now);
+        if (expirationTime < 0) {
+            if (lastModified != null) {
+                expirationTime = getHeuristicExpirationTime(response, lastModified, now);
+            } else if (eTag != null) {
+                // we can't know how long it's fresh, but we can cheaply find out if it changed
+                expirationTime = now;
+            } else {
+                expirationTime = Long.MAX_VALUE;
+            }
+        }
+        return new ResponseData(response.getStatusLine().getStatusCode(), responseBody, now,
+                expirationTime, selectHeaders(response.getAllHeaders()));
+    }
+
+    /**
+     * Updates a cache entry with the headers of a 304 (Not Modified) response received for it
+     * just now, which replace the cached headers of the same name. If the 304 doesn't tell how
+     * long the entry is fresh, it's kept fresh for as long as it was before.
+     */
+    static ResponseData refresh(ResponseData cachedData, HttpResponse notModified) {
+        long now = System.currentTimeMillis();
+        Header[] updates = selectHeaders(notModified.getAllHeaders());
+        Set<String> updated = new HashSet<String>();
+        for (Header header : updates) {
+            updated.add(header.getName().toLowerCase());
+        }
+        List<Header> headers = new ArrayList<Header>();
+        for (Header header : cachedData.getHeaders()) {
+            if (!updated.contains(header.getName().toLowerCase())) {
+                headers.add(header);
+            }
+        }
+        headers.addAll(Arrays.asList(updates));
+
+        long expirationTime = getExplicitExpirationTime(notModified, now);
+        if (expirationTime < 0) {
+            long lifetime = cachedData.getExpirationTime() - cachedData.getResponseTime();
+            expirationTime = lifetime > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + lifetime;
+        }
+        return new ResponseData(cachedData.getStatusCode(), cachedData.getStoredBody(),
+                cachedData.isCompressed(), now, expirationTime,
+                headers.toArray(new Header[headers.size()]));
+    }
+
+    /**
+     * Makes the given request conditional, so that the server answers with a 304 (Not Modified)
+     * instead of the full response if the cached response is still valid.
+     */
+    static void addConditionalHeaders(HttpUriRequest request, ResponseData cachedData) {
+        if (cachedData.getETag() != null && !request.containsHeader(HEADER_IF_NONE_MATCH)) {
+            request.setHeader(HEADER_IF_NONE_MATCH, cachedData.getETag());
+        }
+        if (cachedData.getLastModified() != null
+                && !request.containsHeader(HEADER_IF_MODIFIED_SINCE)) {
+            request.setHeader(HEADER_IF_MODIFIED_SINCE, cachedData.getLastModified());
+        }
+    }
+
+    /**
+     * @param maxStaleness
+     *            how long, in milliseconds, a response may be used after it went stale
+     * @return true if the given stale response may be used while it's being revalidated, i.e. if
+     *         it hasn't been stale for longer than maxStaleness, and the server didn't ask for it
+     *         to be revalidated before every use (no-cache) or once it's stale (must-revalidate)
+     */
+    static boolean mayServeStale(ResponseData cachedData, long maxStaleness) {
+        long staleness = System.currentTimeMillis() - cachedData.getExpirationTime();
+        if (staleness > maxStaleness) {
+            return false;
+        }
+        for (Header header : cachedData.getHeaders()) {
+            if (!HEADER_CACHE_CONTROL.equalsIgnoreCase(header.getName())) {
+                continue;
+            }
+            for (HeaderElement element : header.getElements()) {
+                if ("no-cache".equalsIgnoreCase(element.getName())
+                        || "must-revalidate".equalsIgnoreCase(element.getName())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static Header[] selectHeaders(Header[] headers) {
+        List<Header> selected = new ArrayList<Header>(headers.length);
+        for (Header header : headers) {
+            if (!UNCACHED_HEADERS.contains(header.getName().toLowerCase())) {
+                selected.add(header);
+            }
+        }
+        return selected.toArray(new Header[selected.size()]);
+    }
+
+    // returns -1 if the response doesn't say when it expires
+    private static long getExplicitExpirationTime(HttpResponse response, long now) {
+        if (hasCacheDirective(response, "no-cache")) {
+            return now;
+        }
+        long age = Math.min(Math.max(0, parseSeconds(getHeader(response, HEADER_AGE))),
+                Integer.MAX_VALUE) * 1000;
+
+        long maxAge = -1;
+        for (Header header : response.getHeaders(HEADER_CACHE_CONTROL)) {
+            for (HeaderElement element : header.getElements()) {
+                if ("max-age".equalsIgnoreCase(element.getName())) {
+                    maxAge = parseSeconds(element.getValue());
+                }
+            }
+        }
+        if (maxAge >= 0) {
+            return now + Math.min(maxAge, Integer.MAX_VALUE) * 1000 - age;
+        }
+
+        String expires = getHeader(response, HEADER_EXPIRES);
+        if (expires != null) {
+            Date expiresDate = parseDate(expires);
+            if (expiresDate == null) {
+                // invalid dates, such as "0", mean already expired
+                return now;
+            }
+            // compare to the server's clock rather than ours
+            Date serverDate = parseDate(getHeader(response, HEADER_DATE));
+            long serverNow = serverDate != null ? serverDate.getTime() : now;
+            return now + expiresDate.getTime() - serverNow - age;
+        }
+        return -1;
+    }
+
+    private static long getHeuristicExpirationTime(HttpResponse response, String lastModified,
+            long now) {
+        Date lastModifiedDate = parseDate(lastModified);
+        if (lastModifiedDate == null) {
+            return now;
+        }
+        Date serverDate = parseDate(getHeader(response, HEADER_DATE));
+        long serverNow = serverDate != null ? serverDate.getTime() : now;
+        long unmodifiedFor = Math.max(0, serverNow - lastModifiedDate.getTime());
+        return now + (long) (unmodifiedFor * HEURISTIC_FRESHNESS_FACTOR);
+    }
+
+    private static boolean hasCacheDirective(HttpResponse response, String directive) {
+        for (Header header : response.getHeaders(HEADER_CACHE_CONTROL)) {
+            for (HeaderElement element : header.getElements()) {
+                if (directive.equalsIgnoreCase(element.getName())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String getHeader(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    private static long parseSeconds(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static Date parseDate(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return DateUtils.parseDate(value);
+        } catch (DateParseException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/* Copyright (c) 2009 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.droidfu.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+
+import android.util.Log;
+
+/**
+ * Lets identical requests which are sent at the same time share a single exchange with the
+ * server. The first of them is executed as usual, while all others sent before it completes wait
+ * for it and get a copy of its response (or the very same exception). Hence, the response is
+ * also written to the response cache only once. See
+ * {@link BetterHttp#setRequestCoalescingEnabled(boolean)}.
+ *
+ * @author Matthias Kaeppler
+ */
+final class RequestCoalescer {
+
+    // the requests currently being sent, by key
+    private static final ConcurrentHashMap<String, Exchange> inFlight =
+            new ConcurrentHashMap<String, Exchange>();
+
+    private static final AtomicLong numCoalescedRequests = new AtomicLong();
+
+    private RequestCoalescer() {
+    }
+
+    /**
+     * Sends the given request, unless an identical one is in flight already, in which case its
+     * response is returned instead.
+     *
+     * @param request
+     *            the request
+     * @param key
+     *            identifies the request; requests with the same key are considered identical
+     * @param deadline
+     *            the absolute time in milliseconds after which to stop waiting for an identical
+     *            request, or -1 to wait for as long as it takes
+     * @return the response
+     */
+    static BetterHttpResponse send(BetterHttpRequestBase request, String key, long deadline)
+            throws IOException {
+        Exchange exchange = new Exchange();
+        Exchange inFlightExchange = register(key, exchange);
+        if (inFlightExchange == null) {
+            try {
+                exchange.complete(request.execute(), null);
+            } catch (Throwable e) {
+                exchange.complete(null, e);
+            } finally {
+                unregister(key, exchange);
+            }
+            inFlightExchange = exchange;
+        } else {
+            Log.d(BetterHttp.LOG_TAG, "Waiting for identical request to " + request.getRequestUrl());
+        }
+
+        try {
+            inFlightExchange.await(deadline);
+        } catch (TimeoutException e) {
+            throw new SocketTimeoutException(
+                    "deadline exceeded while waiting for identical request");
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting for identical request");
+        }
+        Throwable cause = inFlightExchange.getError();
+        if (cause == null) {
+            return inFlightExchange == exchange ? exchange.getResponse() : inFlightExchange
+                    .copyResponse();
+        } else if (cause instanceof IOException) {
+            throw (IOException) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        IOException ex = new IOException(cause.getMessage());
+        ex.initCause(cause);
+        throw ex;
+    }
+
+    /**
+     * Makes the given exchange the one identical requests wait for, unless there's one in flight
+     * already, in which case the caller joins it. If not, the caller must complete the given
+     * exchange and then {@link #unregister(String, Exchange)} it.
+     *
+     * @return the exchange in flight, or null if the given one has been registered
+     */
+    static Exchange register(String key, Exchange exchange) {
+        for (;;) {
+            Exchange inFlightExchange = inFlight.putIfAbsent(key, exchange);
+            if (inFlightExchange == null) {
+                return null;
+            }
+            if (inFlightExchange.join()) {
+                numCoalescedRequests.incrementAndGet();
+                return inFlightExchange;
+            }
+            // the request sending it has been cancelled, so take its place
+            inFlight.remove(key, inFlightExchange);
+        }
+    }
+
+    static void unregister(String key, Exchange exchange) {
+        inFlight.remove(key, exchange);
+    }
+
+    /**
+     * @return the number of requests which were answered with the response to an identical
+     *         request, rather than sent themselves
+     */
+    static long getCoalescedRequestCount() {
+        return numCoalescedRequests.get();
+    }
+
+    /**
+     * The outcome of a request, shared with all identical requests. Requests waiting for it
+     * either block until it's there or, if they're sent in the background, are notified once
+     * it's there, so that they don't occupy a thread in the meantime.
+     */
+    static final class Exchange {
+
+        private boolean isDone;
+
+        private BetterHttpResponse response;
+
+        private Throwable error;
+
+        private List<Runnable> listeners = new ArrayList<Runnable>(0);
+
+        // how many identical requests have joined this exchange
+        private int numWaiters;
+
+        private boolean isAbandoned;
+
+        /**
+         * Adds a request to those waiting for this exchange.
+         *
+         * @return false if the exchange has been abandoned, in which case the request must be sent
+         *         by itself
+         */
+        synchronized boolean join() {
+            if (isAbandoned) {
+                return false;
+            }
+            numWaiters++;
+            return true;
+        }
+
+        /**
+         * Gives up on this exchange, since the request sending it has been cancelled, unless
+         * identical requests are waiting for it. Requests coming later won't join it anymore.
+         *
+         * @return true if the exchange has been abandoned, false if it must still be completed for
+         *         the requests waiting for it
+         */
+        synchronized boolean abandon() {
+            if (numWaiters > 0) {
+                return false;
+            }
+            isAbandoned = true;
+            return true;
+        }
+
+        synchronized boolean isAbandoned() {
+            return isAbandoned;
+        }
+
+        /**
+         * Sets the outcome of the request and notifies everyone waiting for it; only the first
+         * call has any effect.
+         */
+        void complete(BetterHttpResponse response, Throwable error) {
+            List<Runnable> listenersToNotify;
+            synchronized (this) {
+                if (isDone) {
+                    return;
+                }
+                this.isDone = true;
+                this.response = response;
+                this.error = error;
+                listenersToNotify = listeners;
+                listeners = null;
+                notifyAll();
+            }
+            for (Runnable listener : listenersToNotify) {
+                listener.run();
+            }
+        }
+
+        /**
+         * Runs the given listener once the exchange is complete, on the thread completing it, or
+         * right away if it's complete already.
+         */
+        void whenDone(Runnable listener) {
+            synchronized (this) {
+                if (!isDone) {
+                    listeners.add(listener);
+                    return;
+                }
+            }
+            listener.run();
+        }
+
+        /**
+         * Waits for the exchange to complete.
+         *
+         * @param deadline
+         *            the absolute time in milliseconds after which to stop waiting, or -1 to wait
+         *            for as long as it takes
+         */
+        synchronized void await(long deadline) throws InterruptedException, TimeoutException {
+            while (!isDone) {
+                if (deadline < 0) {
+                    wait();
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new TimeoutException();
+                    }
+                    wait(remaining);
+                }
+            }
+        }
+
+        synchronized BetterHttpResponse getResponse() {
+            return response;
+        }
+
+        /**
+         * @return a response of the caller's own, with a copy of the body of the response, so
+         *         that requests waiting for this one don't share mutable objects such as the JSON
+         *         object parsed from the body
+         */
+        BetterHttpResponse copyResponse() throws IOException {
+            BetterHttpResponse response = getResponse();
+            HttpResponse shared = response.unwrap();
+            BasicHttpResponse copy = new BasicHttpResponse(shared.getStatusLine());
+            copy.setHeaders(shared.getAllHeaders());
+            HttpEntity sharedEntity = shared.getEntity();
+            if (sharedEntity != null) {
+                // the body has been inflated already, if it came in compressed
+                ByteArrayEntity entity = new ByteArrayEntity(response.getResponseBodyAsBytes());
+                entity.setContentType(sharedEntity.getContentType());
+                copy.setEntity(entity);
+            }
+            return new BetterHttpResponseImpl(copy);
+        }
+
+        /**
+         * @return what the request failed with, or null if it succeeded
+         */
+        synchronized Throwable getError() {
+            return error;
+        }
+    }
+}
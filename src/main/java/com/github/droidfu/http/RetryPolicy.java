@@ -0,0 +1,130 @@
+/* Copyright (c) 2009 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.droidfu.http;
+
+import java.util.Random;
+
+/**
+ * Decides how long to wait before retrying a failed request, and whether to retry at all. The
+ * delay grows exponentially with every attempt, up to a maximum, and is randomized so that clients
+ * which failed at the same time don't all retry at the same time, too.
+ * <p>
+ * On top of that, all retries made under one policy draw from a shared budget, which is refilled
+ * at a fixed rate. If many requests fail at once, e.g. during an outage, the budget runs dry and
+ * further requests fail right away instead of keeping threads busy with retries that are unlikely
+ * to succeed.
+ * </p>
+ *
+ * @author Matthias Kaeppler
+ */
+public class RetryPolicy {
+
+    public static final long DEFAULT_INITIAL_DELAY = 1000;
+    public static final long DEFAULT_MAX_DELAY = 30 * 1000;
+    public static final int DEFAULT_MAX_RETRY_BUDGET = 10;
+    public static final long DEFAULT_BUDGET_REFILL_INTERVAL = 2 * 1000;
+
+    private static final Random random = new Random();
+
+    private final long initialDelay, maxDelay;
+
+    private final int maxBudget;
+
+    private final long refillIntervalNanos;
+
+    private double budget;
+
+    private long lastRefill;
+
+    /**
+     * Creates a policy with the default delays and retry budget.
+     */
+    public RetryPolicy() {
+        this(DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY, DEFAULT_MAX_RETRY_BUDGET,
+                DEFAULT_BUDGET_REFILL_INTERVAL);
+    }
+
+    /**
+     * @param initialDelay
+     *            the delay in milliseconds before the first retry, which doubles with every further
+     *            retry
+     * @param maxDelay
+     *            the maximum delay in milliseconds before a retry
+     * @param maxBudget
+     *            how many retries can be made in a burst, before they're limited by the refill rate
+     * @param refillInterval
+     *            the time in milliseconds after which one more retry is added to the budget
+     */
+    public RetryPolicy(long initialDelay, long maxDelay, int maxBudget, long refillInterval) {
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.maxBudget = maxBudget;
+        this.refillIntervalNanos = refillInterval * 1000 * 1000;
+        this.budget = maxBudget;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Computes how long to wait before the given retry. This is a random value between half and
+     * all of the exponentially growing delay for this retry.
+     *
+     * @param attempt
+     *            the number of attempts made so far, starting at 1
+     * @return the delay in milliseconds
+     */
+    public long getRetryDelay(int attempt) {
+        long delay = initialDelay;
+        for (int i = 1; i < attempt && delay < maxDelay; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelay);
+        long halfDelay = delay / 2;
+        return halfDelay + (long) (random.nextDouble() * (delay - halfDelay));
+    }
+
+    /**
+     * Takes one retry from the budget, if there is one left. Call this only once it has been
+     * decided that a request should be retried.
+     *
+     * @return true if the request may be retried, false if the budget is exhausted
+     */
+    public synchronized boolean acquireRetry() {
+        refill();
+        if (budget < 1) {
+            return false;
+        }
+        budget--;
+        return true;
+    }
+
+    /**
+     * @return how many retries could currently be made in a burst
+     */
+    public synchronized int getRemainingBudget() {
+        refill();
+        return (int) budget;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (refillIntervalNanos > 0) {
+            budget = Math.min(maxBudget, budget + (double) (now - lastRefill) / refillIntervalNanos);
+        } else {
+            budget = maxBudget;
+        }
+        lastRefill = now;
+    }
+}
@@ -15,32 +15,63 @@
 
 package com.github.droidfu.imageloader;
 
-import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.WeakHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
 import android.os.Message;
-import android.os.SystemClock;
 import android.util.Log;
+import android.view.ViewGroup;
 import android.widget.ImageView;
 
 import com.github.droidfu.adapters.WebGalleryAdapter;
 import com.github.droidfu.cachefu.ImageCache;
+import com.github.droidfu.http.BetterHttp;
+import com.github.droidfu.http.BetterHttpRequestRetryHandler;
+import com.github.droidfu.http.RetryPolicy;
 import com.github.droidfu.widgets.WebImageView;
 
 /**
  * Realizes an background image loader backed by a two-level FIFO cache. If the image to be loaded
  * is present in the cache, it is set immediately on the given view. Otherwise, a thread from a
  * thread pool will be used to download the image in the background and set the image on the view as
- * soon as it completes.
+ * soon as it completes. If the same image is requested again while it's still being loaded, the
+ * request is attached to the pending download instead of starting another one.
+ * <p>
+ * Every request returns an {@link ImageLoaderRequest}, which can be used to cancel it. Requests
+ * made for an ImageView are cancelled automatically once the view is bound to another image (e.g.
+ * because it was recycled by a ListView), so that rows which scrolled out of sight don't keep the
+ * thread pool busy.
+ * </p>
+ * <p>
+ * Downloads which can't be started right away wait in a bounded queue, which by default hands out
+ * the most recently requested images of the highest {@link #PRIORITY_VISIBLE priority} first, so
+ * that after a fast scroll the images currently on screen are loaded before those of rows long
+ * gone. If the queue is full, the least urgent download is dropped. See
+ * {@link #setSchedulingPolicy(Comparator)} for how to change this.
+ * </p>
  * 
  * @author Matthias Kaeppler
  */
@@ -50,27 +81,150 @@ public class ImageLoader implements Runnable {
     public static final String BITMAP_EXTRA = "droidfu:extra_bitmap";
     public static final String IMAGE_URL_EXTRA = "droidfu:extra_image_url";
 
+    /**
+     * Priority of images which are about to be shown on screen. This is the default.
+     */
+    public static final int PRIORITY_VISIBLE = 0;
+
+    /**
+     * Priority of images which will likely be shown soon, e.g. those of the next rows in a list.
+     */
+    public static final int PRIORITY_PREFETCH = 1;
+
+    /**
+     * Priority of images which are loaded ahead of time, without any indication they're needed.
+     */
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    /**
+     * Runs downloads in the order they were requested.
+     */
+    public static final Comparator<ImageLoader> SCHEDULE_FIFO = new Comparator<ImageLoader>() {
+        public int compare(ImageLoader a, ImageLoader b) {
+            return compareLongs(a.sequenceNumber, b.sequenceNumber);
+        }
+    };
+
+    /**
+     * Runs the most recently requested downloads first.
+     */
+    public static final Comparator<ImageLoader> SCHEDULE_LIFO = new Comparator<ImageLoader>() {
+        public int compare(ImageLoader a, ImageLoader b) {
+            return compareLongs(b.sequenceNumber, a.sequenceNumber);
+        }
+    };
+
+    /**
+     * Runs downloads of higher priority first, and among those of the same priority, the most
+     * recently requested ones. This is the default.
+     */
+    public static final Comparator<ImageLoader> SCHEDULE_BY_PRIORITY = new Comparator<ImageLoader>() {
+        public int compare(ImageLoader a, ImageLoader b) {
+            if (a.priority != b.priority) {
+                return a.priority < b.priority ? -1 : 1;
+            }
+            return compareLongs(b.sequenceNumber, a.sequenceNumber);
+        }
+    };
+
     private static final String LOG_TAG = "Droid-Fu/ImageLoader";
     // the default thread pool size
     private static final int DEFAULT_POOL_SIZE = 3;
     // expire images after a day
     // TODO: this currently only affects the in-memory cache, so it's quite pointless
     private static final int DEFAULT_TTL_MINUTES = 24 * 60;
-    private static final int DEFAULT_RETRY_HANDLER_SLEEP_TIME = 1000;
     private static final int DEFAULT_NUM_RETRIES = 3;
+    // how many downloads may wait for a thread before the least urgent ones get dropped
+    private static final int DEFAULT_MAX_QUEUE_SIZE = 50;
+
+    private static final ImageLoaderQueue jobQueue = new ImageLoaderQueue(DEFAULT_MAX_QUEUE_SIZE,
+            SCHEDULE_BY_PRIORITY);
+
+    // orders jobs by the time they were last requested
+    private static final AtomicLong sequenceNumbers = new AtomicLong();
 
     private static ThreadPoolExecutor executor;
+    // puts failed jobs back into the queue once their retry delay has passed
+    private static ScheduledExecutorService retryScheduler;
     private static ImageCache imageCache;
+    // null means BetterHttp's client is used
+    private static volatile HttpClient httpClient;
     private static int numRetries = DEFAULT_NUM_RETRIES;
+    private static volatile RetryPolicy retryPolicy = new RetryPolicy();
 
     private static long expirationInMinutes = DEFAULT_TTL_MINUTES;
+
+    // jobs which have been started but haven't notified their handlers yet, keyed by image URL and
+    // target size; also guards the requests of every job, requestsByView and droppedImageUrls
+    private static final HashMap<String, ImageLoader> inFlightJobs = new HashMap<String, ImageLoader>();
+
+    // the pending request of every ImageView, so that it can be cancelled when the view is rebound
+    private static final WeakHashMap<ImageView, ImageLoaderRequest> requestsByView = new WeakHashMap<ImageView, ImageLoaderRequest>();
+
+    // the image URL of every ImageView whose request was dropped from the queue, so that binding
+    // it to the same image again restarts the download
+    private static final WeakHashMap<ImageView, String> droppedImageUrls = new WeakHashMap<ImageView, String>();
+
+    private static final AtomicLong numDeliveredImages = new AtomicLong();
+    private static final AtomicLong numWastedImages = new AtomicLong();
+    private static final AtomicLong numCancelledJobs = new AtomicLong();
+    private static final AtomicLong numDroppedJobs = new AtomicLong();
     
     /**
      * @param numThreads
      *            the maximum number of threads that will be started to download images in parallel
      */
     public static void setThreadPoolSize(int numThreads) {
-        executor.setMaximumPoolSize(numThreads);
+        // the pool never grows beyond its core size, since the queue accepts every job
+        if (numThreads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(numThreads);
+            executor.setCorePoolSize(numThreads);
+        } else {
+            executor.setCorePoolSize(numThreads);
+            executor.setMaximumPoolSize(numThreads);
+        }
+    }
+
+    /**
+     * Sets the HTTP client used to download images. By default, images are downloaded using
+     * {@link BetterHttp#getHttpClient()}, so that they share its pool of keep-alive connections
+     * with all other requests. Set a client with its own connection manager here if images should
+     * not compete with other requests for connections; it must be safe to use from
+     * multiple threads, and should allow for at least as many connections per host as the image
+     * loader has threads.
+     * 
+     * @param httpClient
+     *            the client to use, or null to use BetterHttp's client
+     */
+    public static void setHttpClient(HttpClient httpClient) {
+        ImageLoader.httpClient = httpClient;
+    }
+
+    private static HttpClient getHttpClient() {
+        HttpClient client = httpClient;
+        return client != null ? client : BetterHttp.getHttpClient();
+    }
+
+    /**
+     * Sets the order in which queued downloads are run. Any comparator over jobs will do, where a
+     * job that compares less runs earlier; when the queue is full, the job that compares greatest
+     * is dropped. Use {@link #getPriority()} and {@link #getSequenceNumber()} to compare jobs.
+     * 
+     * @param policy
+     *            the scheduling policy, e.g. {@link #SCHEDULE_LIFO} or
+     *            {@link #SCHEDULE_BY_PRIORITY} (the default)
+     */
+    public static void setSchedulingPolicy(Comparator<ImageLoader> policy) {
+        jobQueue.setPolicy(policy);
+    }
+
+    /**
+     * @param maxQueueSize
+     *            how many downloads may wait for a free thread; if more are requested, the least
+     *            urgent ones are dropped
+     */
+    public static void setMaxQueueSize(int maxQueueSize) {
+        jobQueue.setCapacity(maxQueueSize);
     }
 
     /**
@@ -82,6 +236,19 @@ public class ImageLoader implements Runnable {
         ImageLoader.numRetries = numAttempts;
     }
 
+    /**
+     * Sets the policy which determines how long to wait before retrying a failed download, and
+     * limits how many downloads may be retried in a burst. Downloads waiting to be retried don't
+     * occupy a thread.
+     * 
+     * @param retryPolicy
+     *            the retry policy; by default, the image loader has a policy of its own, so that
+     *            failing downloads can't use up the retry budget of other requests
+     */
+    public static void setRetryPolicy(RetryPolicy retryPolicy) {
+        ImageLoader.retryPolicy = retryPolicy;
+    }
+
     /**
      * This method must be called before any other method is invoked on this class. Please note that
      * when using ImageLoader as part of {@link WebImageView} or {@link WebGalleryAdapter}, then
@@ -93,7 +260,9 @@ public class ImageLoader implements Runnable {
      */
     public static synchronized void initialize(Context context) {
         if (executor == null) {
-            executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(DEFAULT_POOL_SIZE);
+            executor = new ThreadPoolExecutor(DEFAULT_POOL_SIZE, DEFAULT_POOL_SIZE, 0L,
+                    TimeUnit.MILLISECONDS, jobQueue);
+            retryScheduler = Executors.newSingleThreadScheduledExecutor();
         }
         if (imageCache == null) {
             imageCache = new ImageCache(25, expirationInMinutes, DEFAULT_POOL_SIZE);
@@ -109,11 +278,36 @@ public class ImageLoader implements Runnable {
     
     private String imageUrl;
 
-    private ImageLoaderHandler handler;
+    private String jobKey;
+
+    private List<ImageLoaderRequest> requests = new ArrayList<ImageLoaderRequest>(1);
+
+    private int targetWidth, targetHeight;
+
+    // set once all requests for this job have been cancelled
+    private volatile boolean isCancelled;
+
+    // the most urgent priority and latest time this job has been requested with, used for
+    // scheduling; updated when requests get attached while the job is queued
+    private volatile int priority;
+    private volatile long sequenceNumber;
 
-    private ImageLoader(String imageUrl, ImageLoaderHandler handler) {
+    // how often downloading this image has failed; only accessed by the thread running the job
+    private int timesFailed;
+
+    // package-private so that tests can queue up jobs without starting them
+    ImageLoader(String imageUrl, String jobKey, int targetWidth, int targetHeight,
+            int priority) {
         this.imageUrl = imageUrl;
-        this.handler = handler;
+        this.jobKey = jobKey;
+        this.targetWidth = targetWidth;
+        this.targetHeight = targetHeight;
+        this.priority = priority;
+        this.sequenceNumber = sequenceNumbers.incrementAndGet();
+    }
+
+    private static int compareLongs(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
     }
 
     /**
@@ -125,9 +319,11 @@ public class ImageLoader implements Runnable {
      *            the URL of the image to download
      * @param imageView
      *            the ImageView which should be updated with the new image
+     * @return a handle to cancel the request with, or null if the image was delivered right away
      */
-    public static void start(String imageUrl, ImageView imageView) {
-        start(imageUrl, imageView, new ImageLoaderHandler(imageView, imageUrl), null, null);
+    public static ImageLoaderRequest start(String imageUrl, ImageView imageView) {
+        return start(imageUrl, imageView, new ImageLoaderHandler(imageView, imageUrl), null, null,
+                0, 0, PRIORITY_VISIBLE);
     }
 
     /**
@@ -144,12 +340,13 @@ public class ImageLoader implements Runnable {
      *            the Drawable set to the ImageView while waiting for the image to be downloaded
      * @param errorDrawable
      *            the Drawable set to the ImageView if a download error occurs
+     * @return a handle to cancel the request with, or null if the image was delivered right away
      */
-    public static void start(String imageUrl, ImageView imageView, Drawable dummyDrawable,
-            Drawable errorDrawable) {
-        start(imageUrl, imageView, new ImageLoaderHandler(imageView, imageUrl,
+    public static ImageLoaderRequest start(String imageUrl, ImageView imageView,
+            Drawable dummyDrawable, Drawable errorDrawable) {
+        return start(imageUrl, imageView, new ImageLoaderHandler(imageView, imageUrl,
  errorDrawable),
-                dummyDrawable, errorDrawable);
+                dummyDrawable, errorDrawable, 0, 0, PRIORITY_VISIBLE);
     }
 
     /**
@@ -163,9 +360,11 @@ public class ImageLoader implements Runnable {
      *            the URL of the image to download
      * @param handler
      *            the handler which is used to handle the downloaded image
+     * @return a handle to cancel the request with, or null if the image was delivered right away
      */
-    public static void start(String imageUrl, ImageLoaderHandler handler) {
-        start(imageUrl, handler.getImageView(), handler, null, null);
+    public static ImageLoaderRequest start(String imageUrl, ImageLoaderHandler handler) {
+        return start(imageUrl, handler.getImageView(), handler, null, null, 0, 0,
+                PRIORITY_VISIBLE);
     }
 
     /**
@@ -183,26 +382,98 @@ public class ImageLoader implements Runnable {
      *            the Drawable set to the ImageView while waiting for the image to be downloaded
      * @param errorDrawable
      *            the Drawable set to the ImageView if a download error occurs
+     * @return a handle to cancel the request with, or null if the image was delivered right away
      */
-    public static void start(String imageUrl, ImageLoaderHandler handler, Drawable dummyDrawable,
-            Drawable errorDrawable) {
-        start(imageUrl, handler.getImageView(), handler, dummyDrawable, errorDrawable);
+    public static ImageLoaderRequest start(String imageUrl, ImageLoaderHandler handler,
+            Drawable dummyDrawable, Drawable errorDrawable) {
+        return start(imageUrl, handler.getImageView(), handler, dummyDrawable, errorDrawable, 0,
+                0, PRIORITY_VISIBLE);
     }
 
-    private static void start(String imageUrl, ImageView imageView, ImageLoaderHandler handler,
-            Drawable dummyDrawable, Drawable errorDrawable) {
+    /**
+     * Triggers the image loader for the given image and handler, like
+     * {@link #start(String, ImageLoaderHandler)}, but decodes the image at a reduced resolution if
+     * it's considerably larger than the size it will be displayed at. This saves both decoding time
+     * and memory, e.g. when showing thumbnails of large images. If no target size is given, it is
+     * inferred from the layout parameters of the handler's ImageView, if it has fixed dimensions.
+     * 
+     * @param imageUrl
+     *            the URL of the image to download
+     * @param handler
+     *            the handler which is used to handle the downloaded image
+     * @param targetWidth
+     *            the width in pixels the image will be displayed at, or 0 if unknown
+     * @param targetHeight
+     *            the height in pixels the image will be displayed at, or 0 if unknown
+     * @return a handle to cancel the request with, or null if the image was delivered right away
+     */
+    public static ImageLoaderRequest start(String imageUrl, ImageLoaderHandler handler,
+            int targetWidth, int targetHeight) {
+        return start(imageUrl, handler.getImageView(), handler, null, null, targetWidth,
+                targetHeight, PRIORITY_VISIBLE);
+    }
+
+    /**
+     * Triggers the image loader for the given image and handler, like
+     * {@link #start(String, ImageLoaderHandler, int, int)}, but with the given priority. Queued
+     * downloads of higher priority are run first (unless a different
+     * {@link #setSchedulingPolicy(Comparator) scheduling policy} has been set), and those of lower
+     * priority are the first to be dropped if too many downloads are waiting.
+     * 
+     * @param imageUrl
+     *            the URL of the image to download
+     * @param handler
+     *            the handler which is used to handle the downloaded image
+     * @param targetWidth
+     *            the width in pixels the image will be displayed at, or 0 if unknown
+     * @param targetHeight
+     *            the height in pixels the image will be displayed at, or 0 if unknown
+     * @param priority
+     *            one of {@link #PRIORITY_VISIBLE}, {@link #PRIORITY_PREFETCH} or
+     *            {@link #PRIORITY_BACKGROUND}
+     * @return a handle to cancel the request with, or null if the image was delivered right away;
+     *         if the request gets dropped from the queue, the handle will be marked as cancelled
+     */
+    public static ImageLoaderRequest start(String imageUrl, ImageLoaderHandler handler,
+            int targetWidth, int targetHeight, int priority) {
+        return start(imageUrl, handler.getImageView(), handler, null, null, targetWidth,
+                targetHeight, priority);
+    }
+
+    private static ImageLoaderRequest start(String imageUrl, ImageView imageView,
+            ImageLoaderHandler handler, Drawable dummyDrawable, Drawable errorDrawable,
+            int targetWidth, int targetHeight, int priority) {
         if (imageView != null) {
+            String oldImageUrl = (String) imageView.getTag();
+            if (imageUrl != null && imageUrl.equals(oldImageUrl)) {
+                synchronized (inFlightJobs) {
+                    ImageLoaderRequest pendingRequest = requestsByView.get(imageView);
+                    if (pendingRequest != null) {
+                        return pendingRequest;
+                    }
+                    if (!imageUrl.equals(droppedImageUrls.get(imageView))) {
+                        // nothing to do, unless the request was dropped from the queue
+                        return null;
+                    }
+                }
+            }
+
+            // whatever this view was waiting for before is of no use anymore
+            ImageLoaderRequest oldRequest;
+            synchronized (inFlightJobs) {
+                oldRequest = requestsByView.remove(imageView);
+                droppedImageUrls.remove(imageView);
+            }
+            if (oldRequest != null) {
+                oldRequest.cancel();
+            }
+
             if (imageUrl == null) {
                 // In a ListView views are reused, so we must be sure to remove the tag that could
                 // have been set to the ImageView to prevent that the wrong image is set.
                 imageView.setTag(null);
                 imageView.setImageDrawable(dummyDrawable);
-                return;
-            }
-            String oldImageUrl = (String) imageView.getTag();
-            if (imageUrl.equals(oldImageUrl)) {
-                // nothing to do
-                return;
+                return null;
             } else {
                 // Set the dummy image while waiting for the actual image to be downloaded.
                 imageView.setImageDrawable(dummyDrawable);
@@ -210,12 +481,151 @@ public class ImageLoader implements Runnable {
             }
         }
 
-        if (imageCache.containsKeyInMemory(imageUrl)) {
-            // do not go through message passing, handle directly instead
-            handler.handleImageLoaded(imageCache.getBitmap(imageUrl), null);
-        } else {
-            executor.execute(new ImageLoader(imageUrl, handler));
+        if (imageView != null && targetWidth <= 0 && targetHeight <= 0) {
+            // only fixed dimensions are of use here; wrap_content and friends are negative
+            ViewGroup.LayoutParams layoutParams = imageView.getLayoutParams();
+            if (layoutParams != null) {
+                targetWidth = Math.max(layoutParams.width, 0);
+                targetHeight = Math.max(layoutParams.height, 0);
+            }
+        }
+
+        // only take the shortcut if this won't touch the disk; a bitmap of some other size
+        // doesn't help, since getBitmap() would have to decode it from disk then
+        if (imageCache.containsBitmapInMemory(imageUrl, targetWidth, targetHeight)
+                || imageCache.containsImageDataInMemory(imageUrl)) {
+            Bitmap bitmap = imageCache.getBitmap(imageUrl, targetWidth, targetHeight);
+            if (bitmap != null) {
+                // do not go through message passing, handle directly instead
+                handler.handleImageLoaded(bitmap, null);
+                return null;
+            }
+            // evicted in the meantime, so load it like any other image
         }
+
+        String jobKey = imageUrl + "#" + targetWidth + "x" + targetHeight;
+        ImageLoader job;
+        ImageLoaderRequest request;
+        boolean isNewJob = false;
+        synchronized (inFlightJobs) {
+            job = inFlightJobs.get(jobKey);
+            if (job == null) {
+                job = new ImageLoader(imageUrl, jobKey, targetWidth, targetHeight, priority);
+                inFlightJobs.put(jobKey, job);
+                isNewJob = true;
+            } else {
+                // if it's still queued, it's now as urgent as the latest request for it
+                job.priority = Math.min(job.priority, priority);
+                job.sequenceNumber = sequenceNumbers.incrementAndGet();
+            }
+            // if it's already on its way, this just has it notify us, too
+            request = new ImageLoaderRequest(job, handler, imageView);
+            job.requests.add(request);
+            if (imageView != null) {
+                requestsByView.put(imageView, request);
+            }
+        }
+        if (isNewJob) {
+            executor.execute(job);
+        }
+        return request;
+    }
+
+    static void cancel(ImageLoaderRequest request) {
+        ImageLoader job = request.getJob();
+        synchronized (inFlightJobs) {
+            if (!job.requests.remove(request)) {
+                // already delivered
+                return;
+            }
+            ImageView imageView = request.getImageView();
+            if (imageView != null && requestsByView.get(imageView) == request) {
+                requestsByView.remove(imageView);
+            }
+            if (!job.requests.isEmpty()) {
+                // someone else still wants this image
+                return;
+            }
+            job.isCancelled = true;
+            if (inFlightJobs.get(job.jobKey) == job) {
+                inFlightJobs.remove(job.jobKey);
+            }
+        }
+        // if it's still queued, we can get rid of it right away; otherwise, the worker thread will
+        // notice the cancellation and give up as soon as possible
+        if (executor.remove(job)) {
+            numCancelledJobs.incrementAndGet();
+        }
+    }
+
+    // called by the job queue if this job was never run because there were more urgent ones
+    void drop() {
+        synchronized (inFlightJobs) {
+            isCancelled = true;
+            if (inFlightJobs.get(jobKey) == this) {
+                inFlightJobs.remove(jobKey);
+            }
+            // the views only remember the dropped image URL, so that binding them to the same
+            // image again will restart the download
+            for (ImageLoaderRequest request : requests) {
+                request.setCancelled();
+                ImageView imageView = request.getImageView();
+                if (imageView != null && requestsByView.get(imageView) == request) {
+                    requestsByView.remove(imageView);
+                    droppedImageUrls.put(imageView, imageUrl);
+                }
+            }
+            requests = new ArrayList<ImageLoaderRequest>(0);
+        }
+        numDroppedJobs.incrementAndGet();
+    }
+
+    /**
+     * @return the priority of this job, which is the most urgent one it has been requested with
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return a number which increases every time this or any other job is requested, so that the
+     *         most recently requested job has the highest one
+     */
+    public long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    /**
+     * @return how many images have been loaded and handed to at least one handler
+     */
+    public static long getDeliveredImageCount() {
+        return numDeliveredImages.get();
+    }
+
+    /**
+     * @return how many images have been loaded in vain, because all requests for them were
+     *         cancelled while they were being decoded
+     */
+    public static long getWastedImageCount() {
+        return numWastedImages.get();
+    }
+
+    /**
+     * @return how many jobs have been cancelled before decoding an image
+     */
+    public static long getCancelledJobCount() {
+        return numCancelledJobs.get();
+    }
+
+    /**
+     * @return how many jobs have been dropped from the queue because more urgent ones were waiting
+     */
+    public static long getDroppedJobCount() {
+        return numDroppedJobs.get();
+    }
+
+    String getImageUrl() {
+        return imageUrl;
     }
 
     /**
@@ -237,87 +647,209 @@ public class ImageLoader implements Runnable {
 
     /**
      * The job method run on a worker thread. It will first query the image cache, and on a miss,
-     * download the image from the Web.
+     * download the image from the Web. If the download fails, the job is scheduled to run again
+     * according to the {@link RetryPolicy}, so that the thread can be used for other images in
+     * the meantime.
      */
     public void run() {
         // TODO: if we had a way to check for in-memory hits, we could improve performance by
         // fetching an image from the in-memory cache on the main thread
-        Bitmap bitmap = imageCache.getBitmap(imageUrl);
-
-        if (bitmap == null) {
-            bitmap = downloadImage();
+        if (isCancelled) {
+            numCancelledJobs.incrementAndGet();
+            return;
         }
 
-        // TODO: gracefully handle this case.
-        notifyImageLoaded(imageUrl, bitmap);
-
+        Bitmap bitmap = null;
+        boolean retryScheduled = false;
+        try {
+            bitmap = imageCache.getBitmap(imageUrl, targetWidth, targetHeight);
+
+            if (bitmap == null) {
+                try {
+                    bitmap = downloadImage();
+                } catch (Throwable e) {
+                    timesFailed++;
+                    Log.w(LOG_TAG, "download for " + imageUrl + " failed (attempt " + timesFailed
+                            + ")");
+                    e.printStackTrace();
+                    retryScheduled = scheduleRetry();
+                }
+            }
+        } finally {
+            // TODO: gracefully handle this case.
+            // even if something went wrong, our handlers must not wait forever
+            if (!retryScheduled) {
+                notifyImageLoaded(imageUrl, bitmap);
+            }
+        }
     }
 
-    // TODO: we could probably improve performance by re-using connections instead of closing them
-    // after each and every download
-    protected Bitmap downloadImage() {
-        int timesTried = 1;
-
-        while (timesTried <= numRetries) {
-            try {
-                byte[] imageData = retrieveImageData();
+    private boolean scheduleRetry() {
+        RetryPolicy policy = retryPolicy;
+        if (timesFailed >= numRetries || isCancelled || !policy.acquireRetry()) {
+            return false;
+        }
+        long delay = policy.getRetryDelay(timesFailed);
+        Log.d(LOG_TAG, "will retry " + imageUrl + " in " + delay + "ms");
+        retryScheduler.schedule(new Runnable() {
+            public void run() {
+                // a job cancelled in the meantime will notice once it's run
+                executor.execute(ImageLoader.this);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
 
-                if (imageData != null) {
-                    imageCache.put(imageUrl, imageData);
-                } else {
-                    break;
-                }
+    /**
+     * Makes a single attempt at downloading and decoding the image. The image data is cached on the
+     * way.
+     * 
+     * @return the decoded image, or null if the response had no body, or the job was cancelled
+     *         before decoding it
+     * @throws IOException
+     *             if the download fails; it may be retried then
+     */
+    protected Bitmap downloadImage() throws IOException {
+        if (imageCache.isDiskCacheEnabled()) {
+            // stream the image to disk and decode it from there, so that we never need to hold it
+            // in memory as a whole
+            File imageFile = retrieveImageFile();
+            if (imageFile == null) {
+                return null;
+            }
+            if (isCancelled) {
+                // keep the image data for next time, but don't bother decoding it
+                numCancelledJobs.incrementAndGet();
+                return null;
+            }
+            return imageCache.decodeBitmap(imageUrl, imageFile, targetWidth, targetHeight);
+        }
 
-                return BitmapFactory.decodeByteArray(imageData, 0, imageData.length);
+        byte[] imageData = retrieveImageData();
+        if (imageData == null) {
+            return null;
+        }
+        imageCache.put(imageUrl, imageData);
 
-            } catch (Throwable e) {
-                Log.w(LOG_TAG, "download for " + imageUrl + " failed (attempt " + timesTried + ")");
-                e.printStackTrace();
-                SystemClock.sleep(DEFAULT_RETRY_HANDLER_SLEEP_TIME);
-                timesTried++;
-            }
+        if (isCancelled) {
+            // keep the image data for next time, but don't bother decoding it
+            numCancelledJobs.incrementAndGet();
+            return null;
         }
 
-        return null;
+        return imageCache.decodeBitmap(imageUrl, imageData, targetWidth, targetHeight);
     }
 
+    /**
+     * Downloads the image into memory. This is used if the disk cache is disabled.
+     * 
+     * @return the image data, or null if the response had no body
+     * @throws IOException
+     */
     protected byte[] retrieveImageData() throws IOException {
-        URL url = new URL(imageUrl);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-        // determine the image size and allocate a buffer
-        int fileSize = connection.getContentLength();
-        if (fileSize < 0) {
-            return null;
-        }
-        byte[] imageData = new byte[fileSize];
-
-        // download the file
-        Log.d(LOG_TAG, "fetching image " + imageUrl + " (" + fileSize + ")");
-        BufferedInputStream istream = new BufferedInputStream(connection.getInputStream());
-        int bytesRead = 0;
-        int offset = 0;
-        while (bytesRead != -1 && offset < fileSize) {
-            bytesRead = istream.read(imageData, offset, fileSize - offset);
-            offset += bytesRead;
+        HttpGet request = new HttpGet(imageUrl);
+        boolean consumed = false;
+        try {
+            HttpEntity entity = executeRequest(request);
+            if (entity == null) {
+                return null;
+            }
+            Log.d(LOG_TAG, "fetching image " + imageUrl + " (" + entity.getContentLength() + ")");
+            // this takes care of bodies of unknown length, too
+            byte[] imageData = EntityUtils.toByteArray(entity);
+            entity.consumeContent();
+            consumed = true;
+            return imageData;
+        } finally {
+            if (!consumed) {
+                request.abort();
+            }
         }
+    }
 
-        // clean up
-        istream.close();
-        connection.disconnect();
+    /**
+     * Downloads the image straight into the disk cache, using a fixed-size buffer regardless of
+     * the size of the image. This is used if the disk cache is enabled.
+     * 
+     * @return the file in the disk cache the image data has been written to, or null if the
+     *         response had no body
+     * @throws IOException
+     */
+    protected File retrieveImageFile() throws IOException {
+        HttpGet request = new HttpGet(imageUrl);
+        boolean consumed = false;
+        try {
+            HttpEntity entity = executeRequest(request);
+            if (entity == null) {
+                return null;
+            }
+            Log.d(LOG_TAG, "fetching image " + imageUrl + " (" + entity.getContentLength() + ")");
+            File imageFile = imageCache.putStream(imageUrl, entity.getContent(),
+                    entity.getContentLength());
+            entity.consumeContent();
+            consumed = true;
+            return imageFile;
+        } finally {
+            // the connection only goes back to the pool once the entity has been read
+            // completely, or if the request has been aborted
+            if (!consumed) {
+                request.abort();
+            }
+        }
+    }
 
-        return imageData;
+    private HttpEntity executeRequest(HttpGet request) throws IOException {
+        // failed downloads are retried by the job itself, without holding on to a worker thread,
+        // so BetterHttp's retry handler mustn't retry them as well
+        HttpContext context = new BasicHttpContext();
+        context.setAttribute(BetterHttpRequestRetryHandler.MAX_RETRIES, 0);
+        HttpResponse response = getHttpClient().execute(request, context);
+        int status = response.getStatusLine().getStatusCode();
+        if (status >= 400) {
+            throw new HttpResponseException(status, "Error status code: " + status);
+        }
+        return response.getEntity();
     }
 
+    /**
+     * Sends the loaded image to all handlers which requested it. Once this has been called,
+     * further requests for the same image will start a new job.
+     */
     public void notifyImageLoaded(String url, Bitmap bitmap) {
-        Message message = new Message();
-        message.what = HANDLER_MESSAGE_ID;
-        Bundle data = new Bundle();
-        data.putString(IMAGE_URL_EXTRA, url);
-        Bitmap image = bitmap;
-        data.putParcelable(BITMAP_EXTRA, image);
-        message.setData(data);
-
-        handler.sendMessage(message);
+        List<ImageLoaderRequest> requestsToNotify;
+        synchronized (inFlightJobs) {
+            if (inFlightJobs.get(jobKey) == this) {
+                inFlightJobs.remove(jobKey);
+            }
+            requestsToNotify = requests;
+            requests = new ArrayList<ImageLoaderRequest>(0);
+            for (ImageLoaderRequest request : requestsToNotify) {
+                ImageView imageView = request.getImageView();
+                if (imageView != null && requestsByView.get(imageView) == request) {
+                    requestsByView.remove(imageView);
+                }
+            }
+        }
+
+        if (bitmap != null) {
+            if (requestsToNotify.isEmpty()) {
+                numWastedImages.incrementAndGet();
+            } else {
+                numDeliveredImages.incrementAndGet();
+            }
+        }
+
+        for (ImageLoaderRequest request : requestsToNotify) {
+            ImageLoaderHandler handler = request.getHandler();
+            Message message = new Message();
+            message.what = HANDLER_MESSAGE_ID;
+            Bundle data = new Bundle();
+            data.putString(IMAGE_URL_EXTRA, url);
+            Bitmap image = bitmap;
+            data.putParcelable(BITMAP_EXTRA, image);
+            message.setData(data);
+
+            handler.sendMessage(message);
+        }
     }
 }
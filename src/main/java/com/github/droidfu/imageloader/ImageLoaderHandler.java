@@ -15,6 +15,8 @@
 
 package com.github.droidfu.imageloader;
 
+import java.lang.ref.WeakReference;
+
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
@@ -23,14 +25,20 @@ import android.os.Handler;
 import android.os.Message;
 import android.widget.ImageView;
 
+/**
+ * Sets images delivered by the {@link ImageLoader} on an ImageView, unless it has been bound to
+ * another image in the meantime. The view is only referenced weakly, so that pending downloads
+ * don't keep views (and the activities behind them) from being garbage collected. If you subclass
+ * this, don't hold on to the view or its context in fields of your own, either.
+ */
 public class ImageLoaderHandler extends Handler {
 
-    private ImageView imageView;
+    private WeakReference<ImageView> imageView;
     private String imageUrl;
     private Drawable errorDrawable;
 
     public ImageLoaderHandler(ImageView imageView, String imageUrl) {
-        this.imageView = imageView;
+        setImageView(imageView);
         this.imageUrl = imageUrl;
     }
 
@@ -67,6 +75,11 @@ public class ImageLoaderHandler extends Handler {
         // If this handler is used for loading images in a ListAdapter,
         // the thread will set the image only if it's the right position,
         // otherwise it won't do anything.
+        ImageView imageView = getImageView();
+        if (imageView == null) {
+            // garbage collected while the image was loading
+            return false;
+        }
         String forUrl = (String) imageView.getTag();
         if (imageUrl.equals(forUrl)) {
             Bitmap image = bitmap != null || errorDrawable == null ? bitmap
@@ -89,11 +102,15 @@ public class ImageLoaderHandler extends Handler {
         this.imageUrl = imageUrl;
     }
 
+    /**
+     * @return the view to set the image on, or null if there is none or if it has been garbage
+     *         collected
+     */
     public ImageView getImageView() {
-        return imageView;
+        return imageView != null ? imageView.get() : null;
     }
 
     public void setImageView(ImageView imageView) {
-        this.imageView = imageView;
+        this.imageView = imageView != null ? new WeakReference<ImageView>(imageView) : null;
     }
 }
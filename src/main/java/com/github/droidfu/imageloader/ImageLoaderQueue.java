@@ -0,0 +1,207 @@
+/* Copyright (c) 2009 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.droidfu.imageloader;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The work queue of the {@link ImageLoader} thread pool. Rather than handing out jobs in the order
+ * they were submitted, it always hands out the most urgent job according to a pluggable scheduling
+ * policy. The queue is bounded; if it's full, the least urgent job is dropped to make room.
+ * <p>
+ * Since the queue is small and the urgency of a job may change while it's waiting (e.g. because an
+ * image that was prefetched is now requested for a visible view), jobs are kept unordered and the
+ * most urgent one is looked up when it's taken.
+ * </p>
+ *
+ * @author Matthias Kaeppler
+ */
+class ImageLoaderQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    private final ArrayList<Runnable> jobs = new ArrayList<Runnable>();
+
+    private volatile Comparator<ImageLoader> policy;
+
+    private volatile int capacity;
+
+    ImageLoaderQueue(int capacity, Comparator<ImageLoader> policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    void setPolicy(Comparator<ImageLoader> policy) {
+        this.policy = policy;
+    }
+
+    void setCapacity(int capacity) {
+        ArrayList<ImageLoader> dropped = new ArrayList<ImageLoader>();
+        synchronized (this) {
+            this.capacity = capacity;
+            while (jobs.size() > capacity) {
+                dropped.add((ImageLoader) jobs.remove(indexOfLeastUrgent()));
+            }
+        }
+        for (ImageLoader job : dropped) {
+            job.drop();
+        }
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    // returns a negative number if a should run before b
+    private int compare(Runnable a, Runnable b) {
+        return policy.compare((ImageLoader) a, (ImageLoader) b);
+    }
+
+    private int indexOfMostUrgent() {
+        int best = 0;
+        for (int i = 1; i < jobs.size(); i++) {
+            if (compare(jobs.get(i), jobs.get(best)) < 0) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private int indexOfLeastUrgent() {
+        int worst = 0;
+        for (int i = 1; i < jobs.size(); i++) {
+            if (compare(jobs.get(i), jobs.get(worst)) > 0) {
+                worst = i;
+            }
+        }
+        return worst;
+    }
+
+    /**
+     * Adds the given job. If the queue is full, the least urgent job (which may be the given one)
+     * is dropped instead, so this never fails.
+     */
+    public boolean offer(Runnable job) {
+        if (job == null) {
+            throw new NullPointerException();
+        }
+        Runnable dropped = null;
+        synchronized (this) {
+            if (capacity <= 0) {
+                dropped = job;
+            } else {
+                if (jobs.size() >= capacity) {
+                    int worst = indexOfLeastUrgent();
+                    if (compare(job, jobs.get(worst)) < 0) {
+                        dropped = jobs.remove(worst);
+                    } else {
+                        dropped = job;
+                    }
+                }
+                if (dropped != job) {
+                    jobs.add(job);
+                    notify();
+                }
+            }
+        }
+        if (dropped != null) {
+            // do this outside the lock, since it needs to update the ImageLoader's bookkeeping
+            ((ImageLoader) dropped).drop();
+        }
+        return true;
+    }
+
+    public boolean offer(Runnable job, long timeout, TimeUnit unit) {
+        return offer(job);
+    }
+
+    public void put(Runnable job) {
+        offer(job);
+    }
+
+    public synchronized Runnable poll() {
+        if (jobs.isEmpty()) {
+            return null;
+        }
+        return jobs.remove(indexOfMostUrgent());
+    }
+
+    public synchronized Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + nanos;
+        while (jobs.isEmpty()) {
+            if (nanos <= 0) {
+                return null;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, nanos);
+            nanos = deadline - System.nanoTime();
+        }
+        return jobs.remove(indexOfMostUrgent());
+    }
+
+    public synchronized Runnable take() throws InterruptedException {
+        while (jobs.isEmpty()) {
+            wait();
+        }
+        return jobs.remove(indexOfMostUrgent());
+    }
+
+    public synchronized Runnable peek() {
+        if (jobs.isEmpty()) {
+            return null;
+        }
+        return jobs.get(indexOfMostUrgent());
+    }
+
+    @Override
+    public synchronized boolean remove(Object job) {
+        return jobs.remove(job);
+    }
+
+    @Override
+    public synchronized int size() {
+        return jobs.size();
+    }
+
+    public synchronized int remainingCapacity() {
+        return Math.max(capacity - jobs.size(), 0);
+    }
+
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    public synchronized int drainTo(Collection<? super Runnable> c, int maxElements) {
+        int count = 0;
+        while (count < maxElements && !jobs.isEmpty()) {
+            c.add(jobs.remove(indexOfMostUrgent()));
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return an iterator over a snapshot of the queued jobs, in no particular order
+     */
+    @Override
+    public synchronized Iterator<Runnable> iterator() {
+        return new ArrayList<Runnable>(jobs).iterator();
+    }
+}
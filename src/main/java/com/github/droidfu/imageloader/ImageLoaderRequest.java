@@ -0,0 +1,83 @@
+/* Copyright (c) 2009 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.droidfu.imageloader;
+
+import java.lang.ref.WeakReference;
+
+import android.widget.ImageView;
+
+/**
+ * A handle to an image requested from the {@link ImageLoader}, which can be used to cancel the
+ * request if the image is no longer needed. Requests made for an ImageView are cancelled
+ * automatically when the view is bound to another image.
+ *
+ * @author Matthias Kaeppler
+ */
+public class ImageLoaderRequest {
+
+    private final ImageLoader job;
+
+    private final ImageLoaderHandler handler;
+
+    // weak, since requestsByView in the ImageLoader keeps requests as values for their views
+    private final WeakReference<ImageView> imageView;
+
+    private volatile boolean isCancelled;
+
+    ImageLoaderRequest(ImageLoader job, ImageLoaderHandler handler, ImageView imageView) {
+        this.job = job;
+        this.handler = handler;
+        this.imageView = imageView != null ? new WeakReference<ImageView>(imageView) : null;
+    }
+
+    /**
+     * Makes sure the handler of this request won't be notified. If no one else is waiting for the
+     * same image, the download is dropped from the queue, or if it's already running, it's
+     * abandoned as soon as possible (at the latest before decoding the image).
+     */
+    public void cancel() {
+        isCancelled = true;
+        ImageLoader.cancel(this);
+    }
+
+    public boolean isCancelled() {
+        return isCancelled;
+    }
+
+    void setCancelled() {
+        isCancelled = true;
+    }
+
+    public String getImageUrl() {
+        return job.getImageUrl();
+    }
+
+    ImageLoader getJob() {
+        return job;
+    }
+
+    ImageLoaderHandler getHandler() {
+        return handler;
+    }
+
+    /**
+     * @return the view this request was made for, or null if there is none or if it has been
+     *         garbage collected
+     */
+    ImageView getImageView() {
+        return imageView != null ? imageView.get() : null;
+    }
+}
@@ -15,6 +15,8 @@
 
 package com.github.droidfu.widgets;
 
+import java.lang.ref.WeakReference;
+
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.drawable.AnimationDrawable;
@@ -22,6 +24,7 @@ import android.graphics.drawable.Drawable;
 import android.os.Message;
 import android.util.AttributeSet;
 import android.view.Gravity;
+import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.ViewSwitcher;
@@ -186,7 +189,14 @@ public class WebImageView extends ViewSwitcher {
             throw new IllegalStateException(
                     "image URL is null; did you forget to set it for this view?");
         }
-        ImageLoader.start(imageUrl, new DefaultImageLoaderHandler());
+        // the inner ImageView wraps its content, so use this view's size to downsample the image
+        int targetWidth = 0, targetHeight = 0;
+        ViewGroup.LayoutParams layoutParams = getLayoutParams();
+        if (layoutParams != null) {
+            targetWidth = Math.max(layoutParams.width, 0);
+            targetHeight = Math.max(layoutParams.height, 0);
+        }
+        ImageLoader.start(imageUrl, new DefaultImageLoaderHandler(this), targetWidth, targetHeight);
     }
 
     public boolean isLoaded() {
@@ -216,18 +226,23 @@ public class WebImageView extends ViewSwitcher {
         this.setDisplayedChild(0);
     }
 
-    private class DefaultImageLoaderHandler extends ImageLoaderHandler {
+    // static, and holding this view weakly, so that a pending download doesn't keep it alive
+    private static class DefaultImageLoaderHandler extends ImageLoaderHandler {
+
+        private final WeakReference<WebImageView> webImageView;
 
-        public DefaultImageLoaderHandler() {
-            super(imageView, imageUrl, errorDrawable);
+        public DefaultImageLoaderHandler(WebImageView webImageView) {
+            super(webImageView.imageView, webImageView.imageUrl, webImageView.errorDrawable);
+            this.webImageView = new WeakReference<WebImageView>(webImageView);
         }
 
         @Override
         protected boolean handleImageLoaded(Bitmap bitmap, Message msg) {
             boolean wasUpdated = super.handleImageLoaded(bitmap, msg);
-            if (wasUpdated) {
-                isLoaded = true;
-                setDisplayedChild(1);
+            WebImageView view = webImageView.get();
+            if (wasUpdated && view != null) {
+                view.isLoaded = true;
+                view.setDisplayedChild(1);
             }
             return wasUpdated;
         }
@@ -0,0 +1,149 @@
+package com.github.droidfu.cachefu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import android.util.Log;
+
+import com.github.droidfu.TestBase;
+
+/**
+ * Checks that a slow disk read only blocks access to its own key, not to the cache as a whole.
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Log.class })
+public class CacheContentionTest extends TestBase {
+
+    private static final String SLOW_KEY = "slow";
+
+    private static class SlowDiskCache extends AbstractCache<String, String> {
+
+        // released by the test once it's done checking what happens while SLOW_KEY is being read
+        private final CountDownLatch diskReleased = new CountDownLatch(1);
+
+        private final CountDownLatch slowReadStarted = new CountDownLatch(1);
+
+        public SlowDiskCache() {
+            super("SlowDiskCache", 100, 60, 4);
+        }
+
+        @Override
+        public String getFileNameForKey(String key) {
+            return key;
+        }
+
+        @Override
+        protected String readValueFromDisk(File file) throws IOException {
+            if (file.getName().equals(SLOW_KEY)) {
+                slowReadStarted.countDown();
+                try {
+                    diskReleased.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e.getMessage());
+                }
+            }
+            return file.getName();
+        }
+
+        @Override
+        protected void writeValueToDisk(File file, String value) throws IOException {
+            FileOutputStream ostream = new FileOutputStream(file);
+            ostream.write(value.getBytes());
+            ostream.close();
+        }
+    }
+
+    private File rootDir;
+
+    private SlowDiskCache cache;
+
+    private Thread slowReader;
+
+    @Before
+    public void setupCache() throws IOException {
+        rootDir = File.createTempFile("cachefu", "test");
+        rootDir.delete();
+        rootDir.mkdirs();
+
+        cache = new SlowDiskCache();
+        cache.setDiskCacheEnabled(rootDir.getAbsolutePath());
+        cache.put("hot", "hot");
+        putOnDiskOnly(SLOW_KEY);
+
+        slowReader = new Thread() {
+            @Override
+            public void run() {
+                cache.get(SLOW_KEY);
+            }
+        };
+    }
+
+    @After
+    public void deleteRootDir() throws InterruptedException {
+        cache.diskReleased.countDown();
+        slowReader.join();
+        deleteRecursively(rootDir);
+    }
+
+    private void putOnDiskOnly(String key) {
+        cache.put(key, key);
+        cache.removeKey(key);
+    }
+
+    // a key which doesn't share its disk lock with SLOW_KEY
+    private String keyOnOtherDiskLock() {
+        for (int i = 0;; i++) {
+            String key = "cold" + i;
+            if (cache.diskLockFor(key) != cache.diskLockFor(SLOW_KEY)) {
+                return key;
+            }
+        }
+    }
+
+    @Test
+    public void diskReadShouldNotBlockDiskReadsOfOtherKeys() throws Exception {
+        String otherKey = keyOnOtherDiskLock();
+        assertNotSame(cache.diskLockFor(SLOW_KEY), cache.diskLockFor(otherKey));
+        putOnDiskOnly(otherKey);
+
+        slowReader.start();
+        assertTrue(cache.slowReadStarted.await(5, TimeUnit.SECONDS));
+
+        // would deadlock until the latch times out if this waited for the slow read
+        assertEquals(otherKey, cache.get(otherKey));
+        assertTrue(slowReader.isAlive());
+    }
+
+    @Test
+    public void diskReadShouldNotBlockMemoryHits() throws Exception {
+        slowReader.start();
+        assertTrue(cache.slowReadStarted.await(5, TimeUnit.SECONDS));
+
+        assertEquals("hot", cache.get("hot"));
+        assertTrue(slowReader.isAlive());
+    }
+
+    private void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,125 @@
+package com.github.droidfu.cachefu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import android.util.Log;
+
+import com.github.droidfu.TestBase;
+import com.google.common.collect.ComputationException;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Log.class })
+public class CacheLoadingTest extends TestBase {
+
+    private static final int NUM_THREADS = 32;
+    private static final int NUM_KEYS = 4;
+
+    private ImageCache cache;
+
+    @Before
+    public void setupCache() {
+        cache = new ImageCache(10, 60, NUM_THREADS);
+    }
+
+    @Test
+    public void concurrentMissesShouldBeServedBySingleLoad() throws Exception {
+        final ConcurrentHashMap<String, AtomicInteger> numLoads = new ConcurrentHashMap<String, AtomicInteger>();
+        for (int k = 0; k < NUM_KEYS; k++) {
+            numLoads.put("key" + k, new AtomicInteger());
+        }
+
+        final Loader<String, byte[]> loader = new Loader<String, byte[]>() {
+            public byte[] load(String key) throws Exception {
+                numLoads.get(key).incrementAndGet();
+                // make sure all other threads pile up behind this load
+                Thread.sleep(100);
+                return new byte[1];
+            }
+        };
+
+        final byte[][] results = new byte[NUM_THREADS][];
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(NUM_THREADS);
+        for (int t = 0; t < NUM_THREADS; t++) {
+            final int threadId = t;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        results[threadId] = cache.get("key" + (threadId % NUM_KEYS), loader);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+
+        for (int k = 0; k < NUM_KEYS; k++) {
+            assertEquals("number of loads for key" + k, 1, numLoads.get("key" + k).get());
+        }
+        for (int t = 0; t < NUM_THREADS; t++) {
+            assertSame(cache.get("key" + (t % NUM_KEYS)), results[t]);
+        }
+        assertEquals(NUM_KEYS, cache.getStats().getLoadSuccessCount());
+    }
+
+    @Test
+    public void failedLoadsShouldBeRetried() {
+        try {
+            cache.get("key", new Loader<String, byte[]>() {
+                public byte[] load(String key) throws Exception {
+                    throw new IOException("network down");
+                }
+            });
+            fail("expected the loader's exception to be propagated");
+        } catch (ComputationException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(1, cache.getStats().getLoadFailureCount());
+
+        byte[] value = new byte[1];
+        assertSame(value, cache.get("key", new StaticLoader(value)));
+    }
+
+    @Test
+    public void shouldNotCacheMissingValues() {
+        assertNull(cache.get("key", new StaticLoader(null)));
+        assertNull(cache.get("key"));
+
+        byte[] value = new byte[1];
+        assertSame(value, cache.get("key", new StaticLoader(value)));
+    }
+
+    private static class StaticLoader implements Loader<String, byte[]> {
+
+        private byte[] value;
+
+        private StaticLoader(byte[] value) {
+            this.value = value;
+        }
+
+        public byte[] load(String key) {
+            return value;
+        }
+    }
+}
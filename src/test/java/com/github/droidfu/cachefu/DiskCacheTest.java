@@ -0,0 +1,319 @@
+package com.github.droidfu.cachefu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import android.util.Log;
+
+import com.github.droidfu.TestBase;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Log.class })
+public class DiskCacheTest extends TestBase {
+
+    private static class StringCache extends AbstractCache<String, String> {
+
+        // when set, disk writes wait for this latch, so that tests can hold up the writer thread
+        private CountDownLatch writeGate;
+
+        // released as soon as the writer thread starts a disk write
+        private CountDownLatch writeStarted = new CountDownLatch(1);
+
+        private AtomicInteger numDiskWrites = new AtomicInteger();
+
+        public StringCache() {
+            super("StringCache", 10, 60, 1);
+        }
+
+        @Override
+        public String getFileNameForKey(String key) {
+            return key;
+        }
+
+        @Override
+        protected String readValueFromDisk(File file) throws IOException {
+            byte[] data = new byte[(int) file.length()];
+            BufferedInputStream istream = new BufferedInputStream(new FileInputStream(file));
+            istream.read(data);
+            istream.close();
+            return new String(data);
+        }
+
+        @Override
+        protected void writeValueToDisk(File file, String value) throws IOException {
+            writeStarted.countDown();
+            if (writeGate != null) {
+                try {
+                    writeGate.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e.getMessage());
+                }
+            }
+            FileOutputStream ostream = new FileOutputStream(file);
+            ostream.write(value.getBytes());
+            ostream.close();
+            numDiskWrites.incrementAndGet();
+        }
+    }
+
+    private File rootDir;
+
+    private StringCache cache;
+
+    @Before
+    public void setupCache() throws IOException {
+        rootDir = File.createTempFile("cachefu", "test");
+        rootDir.delete();
+        rootDir.mkdirs();
+
+        cache = newCache();
+    }
+
+    private StringCache newCache() {
+        StringCache cache = new StringCache();
+        cache.setDiskCacheEnabled(rootDir.getAbsolutePath());
+        return cache;
+    }
+
+    @After
+    public void deleteRootDir() {
+        deleteRecursively(rootDir);
+    }
+
+    @Test
+    public void shouldReadThroughFromDisk() {
+        cache.put("key", "value");
+        cache.removeKey("key");
+
+        assertFalse(cache.containsKeyInMemory("key"));
+        assertEquals("value", cache.get("key"));
+        assertTrue(cache.containsKeyInMemory("key"));
+    }
+
+    @Test
+    public void writeBehindShouldPersistValuesInTheBackground() {
+        cache.enableWriteBehind(10);
+        cache.writeGate = new CountDownLatch(1);
+
+        cache.put("key", "value");
+        // the writer thread may already have created the file, but can't have written it
+        assertEquals(0, cache.numDiskWrites.get());
+
+        // not on disk yet, but must still be readable after dropping it from memory
+        cache.removeKey("key");
+        assertTrue(cache.containsKey("key"));
+        assertEquals("value", cache.get("key"));
+
+        cache.writeGate.countDown();
+        cache.flush();
+        assertTrue(new File(cache.getDiskCacheDirectory(), "key").exists());
+    }
+
+    @Test
+    public void writeBehindShouldOnlyWriteLatestValueOfAKey() throws Exception {
+        cache.enableWriteBehind(10);
+        cache.writeGate = new CountDownLatch(1);
+
+        // occupy the writer thread, so that the next writes queue up behind it
+        cache.put("other", "value");
+        assertTrue(cache.writeStarted.await(5, TimeUnit.SECONDS));
+
+        cache.put("key", "v1");
+        cache.put("key", "v2");
+        cache.put("key", "v3");
+
+        cache.writeGate.countDown();
+        cache.disableWriteBehind();
+
+        assertEquals(2, cache.numDiskWrites.get());
+        cache.removeKey("key");
+        assertEquals("v3", cache.get("key"));
+    }
+
+    @Test
+    public void removingShouldDiscardPendingWrites() {
+        cache.enableWriteBehind(10);
+        cache.writeGate = new CountDownLatch(1);
+
+        cache.put("key", "value");
+        cache.writeGate.countDown();
+        cache.remove("key");
+        cache.flush();
+
+        assertNull(cache.get("key"));
+    }
+
+    @Test
+    public void clearingShouldDiscardPendingWrites() throws Exception {
+        cache.enableWriteBehind(10);
+        cache.writeGate = new CountDownLatch(1);
+
+        cache.put("key", "value");
+        assertTrue(cache.writeStarted.await(5, TimeUnit.SECONDS));
+
+        // clearing has to wait for the write in progress, or that would bring the file back
+        Thread clearer = new Thread() {
+            @Override
+            public void run() {
+                cache.clear();
+            }
+        };
+        clearer.start();
+        while (clearer.getState() != Thread.State.BLOCKED && clearer.isAlive()) {
+            Thread.yield();
+        }
+        cache.writeGate.countDown();
+        clearer.join(5000);
+        assertFalse(clearer.isAlive());
+        cache.flush();
+
+        assertFalse(new File(cache.getDiskCacheDirectory(), "key").exists());
+        assertFalse(cache.containsKey("key"));
+        assertNull(cache.get("key"));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedFilesWhenDiskCacheIsFull() {
+        cache.setMaxDiskCacheSize(10);
+        cache.put("a", "12345");
+        cache.put("b", "12345");
+        assertEquals(10, cache.getDiskCacheSize());
+
+        // read a from disk, so that b becomes the eldest file
+        cache.removeKey("a");
+        assertEquals("12345", cache.get("a"));
+
+        cache.put("c", "12345");
+
+        assertEquals(10, cache.getDiskCacheSize());
+        assertTrue(new File(cache.getDiskCacheDirectory(), "a").exists());
+        assertFalse(new File(cache.getDiskCacheDirectory(), "b").exists());
+        assertTrue(new File(cache.getDiskCacheDirectory(), "c").exists());
+    }
+
+    @Test
+    public void diskCacheIndexShouldSurviveRestarts() {
+        cache.setMaxDiskCacheSize(10);
+        cache.put("a", "12345");
+        cache.put("b", "12345");
+        cache.removeKey("a");
+        cache.get("a");
+        cache.flush();
+
+        StringCache restarted = newCache();
+        assertTrue(restarted.containsKey("a"));
+        assertTrue(restarted.containsKey("b"));
+        assertEquals(10, restarted.getDiskCacheSize());
+
+        // the access order must have been restored, too
+        restarted.setMaxDiskCacheSize(10);
+        restarted.put("c", "12345");
+        assertTrue(restarted.containsKey("a"));
+        assertFalse(restarted.containsKey("b"));
+    }
+
+    @Test
+    public void shouldKeepJournalInNewCacheDirectory() {
+        cache.put("key", "value");
+        cache.flush();
+
+        assertTrue(new File(cache.getDiskCacheDirectory(), DiskCacheIndex.JOURNAL_FILE).exists());
+    }
+
+    @Test
+    public void shouldRebuildIndexFromDirectoryWithoutJournal() throws IOException {
+        cache.put("key", "value");
+        new File(cache.getDiskCacheDirectory(), DiskCacheIndex.JOURNAL_FILE).delete();
+
+        StringCache restarted = newCache();
+        assertTrue(restarted.containsKey("key"));
+        assertEquals(5, restarted.getDiskCacheSize());
+    }
+
+    @Test
+    public void shouldTreatFilesDeletedBehindItsBackAsMisses() {
+        cache.put("key", "value");
+        cache.removeKey("key");
+        new File(cache.getDiskCacheDirectory(), "key").delete();
+
+        assertNull(cache.get("key"));
+        assertFalse(cache.containsKey("key"));
+        assertEquals(0, cache.getDiskCacheSize());
+    }
+
+    @Test
+    public void shouldCountHitsAndMissesPerTier() {
+        cache.setMaxDiskCacheSize(10);
+        cache.put("a", "12345");
+        cache.put("b", "12345");
+        cache.removeKey("a");
+
+        cache.get("a");
+        cache.get("a");
+        cache.get("c");
+        cache.put("c", "12345");
+
+        CacheStats stats = cache.getStats();
+        assertEquals(1, stats.getMemoryHitCount());
+        assertEquals(1, stats.getDiskHitCount());
+        assertEquals(1, stats.getMissCount());
+        assertEquals(5, stats.getDiskBytesRead());
+        assertEquals(15, stats.getDiskBytesWritten());
+        assertEquals(1, stats.getDiskEvictionCount());
+    }
+
+    @Test
+    public void committedFilesShouldReplaceCachedValues() throws IOException {
+        cache.put("key", "old");
+
+        File partialFile = cache.createPartialFile("key");
+        FileOutputStream ostream = new FileOutputStream(partialFile);
+        ostream.write("new".getBytes());
+        ostream.close();
+        File file = cache.commitToDisk("key", partialFile);
+
+        assertFalse(partialFile.exists());
+        assertEquals(new File(cache.getDiskCacheDirectory(), "key"), file);
+        assertFalse(cache.containsKeyInMemory("key"));
+        assertEquals("new", cache.get("key"));
+        assertEquals(3, cache.getDiskCacheSize());
+    }
+
+    @Test
+    public void shouldDeletePartialFilesLeftBehind() throws IOException {
+        File partialFile = cache.createPartialFile("key");
+        assertTrue(partialFile.exists());
+
+        cache = newCache();
+        assertFalse(partialFile.exists());
+        assertFalse(cache.containsKey("key"));
+    }
+
+    private void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
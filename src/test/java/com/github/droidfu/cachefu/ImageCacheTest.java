@@ -0,0 +1,100 @@
+package com.github.droidfu.cachefu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import android.util.Log;
+
+import com.github.droidfu.TestBase;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Log.class })
+public class ImageCacheTest extends TestBase {
+
+    private ImageCache cache;
+
+    @Before
+    public void setupCache() {
+        cache = new ImageCache(10, 60, 1);
+        cache.setMaxMemoryCacheSize(100);
+    }
+
+    @Test
+    public void shouldTrackWeightOfElementsInMemory() {
+        cache.put("a", new byte[30]);
+        cache.put("b", new byte[40]);
+        assertEquals(70, cache.getWeight());
+
+        // replacing an element must not count it twice
+        cache.put("a", new byte[10]);
+        assertEquals(50, cache.getWeight());
+
+        cache.removeKey("b");
+        assertEquals(10, cache.getWeight());
+
+        cache.clear();
+        assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedElementsWhenFull() {
+        cache.put("a", new byte[40]);
+        cache.put("b", new byte[40]);
+
+        // touch a, so that b becomes the eldest element
+        assertNotNull(cache.get("a"));
+
+        cache.put("c", new byte[40]);
+
+        assertTrue(cache.containsKeyInMemory("a"));
+        assertFalse(cache.containsKeyInMemory("b"));
+        assertTrue(cache.containsKeyInMemory("c"));
+        assertEquals(80, cache.getWeight());
+        assertEquals(1, cache.getStats().getMemoryEvictionCount());
+    }
+
+    @Test
+    public void shouldTellWhetherImageDataIsInMemory() {
+        cache.put("a", new byte[40]);
+        assertTrue(cache.containsImageDataInMemory("a"));
+        assertFalse(cache.containsBitmapInMemory("a", 0, 0));
+
+        cache.removeKey("a");
+        assertFalse(cache.containsImageDataInMemory("a"));
+    }
+
+    @Test
+    public void shouldNotKeepElementsHeavierThanTheBound() {
+        cache.put("a", new byte[101]);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    public void shouldDownsampleByPowersOfTwoWithoutUndershootingTargetSize() {
+        assertEquals(1, ImageCache.computeSampleSize(1024, 768, 0, 0));
+        assertEquals(1, ImageCache.computeSampleSize(100, 100, 200, 200));
+        assertEquals(8, ImageCache.computeSampleSize(1024, 768, 64, 64));
+        assertEquals(4, ImageCache.computeSampleSize(1024, 768, 200, 64));
+        assertEquals(2, ImageCache.computeSampleSize(1024, 768, 0, 300));
+    }
+
+    @Test
+    public void shouldRetainElementsWhenBoundIsApplied() {
+        ImageCache unbounded = new ImageCache(10, 60, 1);
+        unbounded.put("a", new byte[20]);
+
+        unbounded.setMaxMemoryCacheSize(100);
+        assertTrue(unbounded.containsKeyInMemory("a"));
+        assertEquals(20, unbounded.getWeight());
+    }
+}
@@ -0,0 +1,215 @@
+package com.github.droidfu.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import android.util.Log;
+
+import com.github.droidfu.cachefu.HttpResponseCache;
+import com.github.droidfu.http.CachedHttpResponse.ResponseData;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Log.class })
+public class BackgroundRevalidatorTest extends BetterHttpTestBase {
+
+    private byte[] body = "Here be Jason.".getBytes();
+
+    private AbstractHttpClient previousHttpClient;
+
+    private HttpResponseCache previousResponseCache;
+
+    // holds on to scheduled revalidations rather than running them
+    private final List<Runnable> scheduled = new ArrayList<Runnable>();
+
+    // what the server answers to revalidations
+    private HttpResponse serverResponse;
+
+    // the last request the server got
+    private HttpUriRequest sentRequest;
+
+    @SuppressWarnings("unchecked")
+    @Before
+    public void setupHttpClient() throws Exception {
+        previousHttpClient = BetterHttp.getHttpClient();
+        previousResponseCache = BetterHttp.getResponseCache();
+        super.setupHttpClient();
+
+        when(
+                httpClientMock.execute(any(HttpUriRequest.class), any(ResponseHandler.class),
+                        any(HttpContext.class))).thenAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                sentRequest = (HttpUriRequest) invocation.getArguments()[0];
+                HttpContext context = (HttpContext) invocation.getArguments()[2];
+                context.setAttribute(ExecutionContext.HTTP_REQ_SENT, Boolean.TRUE);
+                ResponseHandler<?> handler = (ResponseHandler<?>) invocation.getArguments()[1];
+                return handler.handleResponse(serverResponse);
+            }
+        });
+
+        BetterHttp.enableResponseCache(10, 60, 1);
+        BetterHttp.setAsyncExecutor(new Executor() {
+            public void execute(Runnable task) {
+                scheduled.add(task);
+            }
+        });
+    }
+
+    @After
+    public void resetBetterHttp() {
+        BetterHttp.setMaxStaleness(0);
+        BetterHttp.setAsyncExecutor(null);
+        BetterHttp.setHttpClient(previousHttpClient);
+        BetterHttp.setResponseCache(previousResponseCache);
+    }
+
+    private void putStaleResponse(String url, long staleFor) {
+        long now = System.currentTimeMillis();
+        BetterHttp.getResponseCache().put(url, new ResponseData(200, body, now - staleFor - 1000,
+                now - staleFor, new Header[] { new BasicHeader("ETag", "\"v1\"") }));
+    }
+
+    private void runScheduledRevalidation() {
+        assertEquals(1, scheduled.size());
+        scheduled.remove(0).run();
+    }
+
+    @Test
+    public void shouldServeStaleResponseWhileRevalidatingIt() throws Exception {
+        String url = "http://example.com/feed/1";
+        putStaleResponse(url, 10 * 1000);
+        BetterHttp.setMaxStaleness(60 * 1000);
+
+        BetterHttpRequest request = BetterHttp.get(url, true);
+        assertTrue(request instanceof CachedHttpRequest);
+        assertArrayEquals(body, request.send().getResponseBodyAsBytes());
+        assertEquals(1, scheduled.size());
+        assertTrue(BackgroundRevalidator.isRevalidating(url));
+
+        // doesn't revalidate again while the first revalidation is pending
+        assertTrue(BetterHttp.get(url, true) instanceof CachedHttpRequest);
+        assertEquals(1, scheduled.size());
+
+        serverResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, 304, "Not Modified");
+        runScheduledRevalidation();
+        assertFalse(BackgroundRevalidator.isRevalidating(url));
+    }
+
+    @Test
+    public void shouldRefreshStaleResponseIfNotModified() throws Exception {
+        String url = "http://example.com/feed/4";
+        putStaleResponse(url, 10 * 1000);
+        BetterHttp.setMaxStaleness(60 * 1000);
+        serverResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, 304, "Not Modified");
+
+        BetterHttp.get(url, true);
+        runScheduledRevalidation();
+
+        assertEquals("\"v1\"", sentRequest.getFirstHeader("If-None-Match").getValue());
+        ResponseData cachedData = BetterHttp.getResponseCache().get(url);
+        assertTrue(cachedData.isFresh());
+        assertArrayEquals(body, cachedData.getResponseBody());
+        assertFalse(BackgroundRevalidator.isRevalidating(url));
+    }
+
+    @Test
+    public void shouldReplaceStaleResponseIfChanged() throws Exception {
+        String url = "http://example.com/feed/5";
+        putStaleResponse(url, 10 * 1000);
+        BetterHttp.setMaxStaleness(60 * 1000);
+        byte[] newBody = "Here be Jason, again.".getBytes();
+        serverResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        serverResponse.setHeader("ETag", "\"v2\"");
+        serverResponse.setEntity(new ByteArrayEntity(newBody));
+
+        BetterHttp.get(url, true);
+        runScheduledRevalidation();
+
+        ResponseData cachedData = BetterHttp.getResponseCache().get(url);
+        assertEquals("\"v2\"", cachedData.getETag());
+        assertArrayEquals(newBody, cachedData.getResponseBody());
+        assertFalse(BackgroundRevalidator.isRevalidating(url));
+    }
+
+    @Test
+    public void shouldKeepStaleResponseIfRevalidationFails() throws Exception {
+        String url = "http://example.com/feed/6";
+        putStaleResponse(url, 10 * 1000);
+        BetterHttp.setMaxStaleness(60 * 1000);
+        serverResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, 500, "Internal Server Error");
+
+        BetterHttp.get(url, true);
+        runScheduledRevalidation();
+
+        ResponseData cachedData = BetterHttp.getResponseCache().get(url);
+        assertEquals("\"v1\"", cachedData.getETag());
+        assertArrayEquals(body, cachedData.getResponseBody());
+        assertFalse(BackgroundRevalidator.isRevalidating(url));
+    }
+
+    @Test
+    public void shouldServeStaleResponseIfRevalidationIsRejected() throws Exception {
+        String url = "http://example.com/feed/7";
+        putStaleResponse(url, 10 * 1000);
+        BetterHttp.setMaxStaleness(60 * 1000);
+        BetterHttp.setAsyncExecutor(new Executor() {
+            public void execute(Runnable task) {
+                throw new RejectedExecutionException();
+            }
+        });
+
+        BetterHttpRequest request = BetterHttp.get(url, true);
+        assertTrue(request instanceof CachedHttpRequest);
+        assertArrayEquals(body, request.send().getResponseBodyAsBytes());
+        // the next request will try again
+        assertFalse(BackgroundRevalidator.isRevalidating(url));
+    }
+
+    @Test
+    public void shouldNotServeResponsesStaleForTooLong() {
+        String url = "http://example.com/feed/2";
+        putStaleResponse(url, 120 * 1000);
+        BetterHttp.setMaxStaleness(60 * 1000);
+
+        assertFalse(BetterHttp.get(url, true) instanceof CachedHttpRequest);
+        assertTrue(scheduled.isEmpty());
+        assertFalse(BackgroundRevalidator.isRevalidating(url));
+    }
+
+    @Test
+    public void shouldNotServeStaleResponsesByDefault() {
+        String url = "http://example.com/feed/3";
+        putStaleResponse(url, 10 * 1000);
+
+        assertFalse(BetterHttp.get(url, true) instanceof CachedHttpRequest);
+        assertTrue(scheduled.isEmpty());
+    }
+}
@@ -0,0 +1,182 @@
+package com.github.droidfu.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.HttpContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import android.util.Log;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest( { Log.class })
+public class BetterHttpAsyncRequestTest extends BetterHttpTestBase {
+
+    // holds on to requests rather than running them, until the test runs them itself
+    private final List<Runnable> queued = new ArrayList<Runnable>();
+
+    private final Executor queueingExecutor = new Executor() {
+        public void execute(Runnable task) {
+            queued.add(task);
+        }
+    };
+
+    private final Executor synchronousExecutor = new Executor() {
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    private static class RecordingCallback implements BetterHttpCallback {
+
+        private BetterHttpResponse response;
+
+        private Exception error;
+
+        private Thread thread;
+
+        private int calls;
+
+        public void onResponse(BetterHttpResponse response) {
+            this.response = response;
+            this.thread = Thread.currentThread();
+            calls++;
+        }
+
+        public void onError(Exception error) {
+            this.error = error;
+            this.thread = Thread.currentThread();
+            calls++;
+        }
+    }
+
+    private final RecordingCallback callback = new RecordingCallback();
+
+    @Before
+    public void deliverCallbacksRightAway() {
+        BetterHttp.setAsyncCallbacksOnMainThread(false);
+    }
+
+    @After
+    public void resetBetterHttp() {
+        BetterHttp.setAsyncCallbacksOnMainThread(true);
+        BetterHttp.setAsyncExecutor(null);
+    }
+
+    @Test
+    public void testSendAsync() throws Exception {
+        BetterHttp.setAsyncExecutor(synchronousExecutor);
+
+        Future<BetterHttpResponse> future = BetterHttp.get(url).sendAsync(callback);
+
+        assertTrue(future.isDone());
+        assertSame(mockResponse, future.get());
+        assertEquals(1, callback.calls);
+        assertSame(mockResponse, callback.response);
+        // with callbacks off the main thread, they're called by whoever sent the request
+        assertSame(Thread.currentThread(), callback.thread);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testSendAsyncWithError() throws Exception {
+        when(
+                httpClientMock.execute(any(HttpUriRequest.class), any(ResponseHandler.class),
+                        any(HttpContext.class))).thenThrow(new ClientProtocolException());
+        BetterHttp.setAsyncExecutor(synchronousExecutor);
+
+        Future<BetterHttpResponse> future = BetterHttp.get(url).retries(0).sendAsync(callback);
+
+        try {
+            future.get();
+            fail("expected the request to fail");
+        } catch (ExecutionException e) {
+            // just what send() would have thrown
+            assertTrue(e.getCause() instanceof ConnectException);
+            assertTrue(e.getCause().getCause() instanceof ClientProtocolException);
+        }
+        assertEquals(1, callback.calls);
+        assertNull(callback.response);
+        assertTrue(callback.error instanceof ConnectException);
+    }
+
+    @Test
+    public void testCancelAsync() throws Exception {
+        BetterHttp.setAsyncExecutor(queueingExecutor);
+
+        BetterHttpRequest request = BetterHttp.get(url);
+        Future<BetterHttpResponse> future = request.sendAsync(callback);
+        assertEquals(1, queued.size());
+
+        assertTrue(future.cancel(true));
+        assertTrue(((HttpRequestBase) request.unwrap()).isAborted());
+
+        // the executor gets around to it only now
+        queued.get(0).run();
+        assertTrue(future.isCancelled());
+        assertEquals(0, callback.calls);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testSendAsyncWhenQueueIsFull() throws Exception {
+        final CountDownLatch serverResponded = new CountDownLatch(1);
+        when(
+                httpClientMock.execute(any(HttpUriRequest.class), any(ResponseHandler.class),
+                        any(HttpContext.class))).thenAnswer(new Answer<BetterHttpResponse>() {
+            public BetterHttpResponse answer(InvocationOnMock invocation) throws Throwable {
+                serverResponded.await(5, TimeUnit.SECONDS);
+                return mockResponse;
+            }
+        });
+
+        BetterHttp.setAsyncExecutor(null);
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) BetterHttp.getAsyncExecutor();
+        try {
+            // every thread is busy with its first request, so all others are queued up
+            int capacity = BetterHttp.DEFAULT_MAX_ASYNC_THREADS
+                    + BetterHttp.DEFAULT_MAX_QUEUED_ASYNC_REQUESTS;
+            for (int i = 0; i < capacity; i++) {
+                BetterHttp.get(url).sendAsync();
+            }
+            try {
+                BetterHttp.get(url).sendAsync(callback);
+                fail("expected the request to be rejected");
+            } catch (RejectedExecutionException e) {
+                // it's up to the caller to try again later
+            }
+            assertEquals(0, callback.calls);
+        } finally {
+            serverResponded.countDown();
+            executor.shutdown();
+        }
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,154 @@
+package com.github.droidfu.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import android.util.Log;
+
+import com.github.droidfu.TestBase;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Log.class })
+public class BetterHttpConnectionManagerTest extends TestBase {
+
+    private static final HttpRoute ROUTE = new HttpRoute(new HttpHost("example.com", 80));
+
+    private BetterHttpConnectionManager manager;
+
+    @Before
+    public void setupManager() {
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        manager = new BetterHttpConnectionManager(schemeRegistry, 1000, 4, 2);
+    }
+
+    @After
+    public void shutdownManager() {
+        manager.shutdown();
+        BetterHttp.setKeepAliveDuration(BetterHttp.DEFAULT_KEEP_ALIVE_DURATION);
+    }
+
+    private ManagedClientConnection lease() throws Exception {
+        return manager.requestConnection(ROUTE, null).getConnection(1000, TimeUnit.MILLISECONDS);
+    }
+
+    // releases the connection as HttpClient does once a response has been consumed
+    private void release(ManagedClientConnection connection) throws IOException {
+        connection.markReusable();
+        connection.releaseConnection();
+    }
+
+    @Test
+    public void shouldReportLeasedConnections() throws Exception {
+        ConnectionPoolStats stats = manager.getStats();
+        assertEquals(4, stats.getMaxTotalConnections());
+        assertEquals(2, stats.getMaxConnectionsPerRoute());
+        assertEquals(0, stats.getLeasedConnections());
+
+        ManagedClientConnection connection = lease();
+        stats = manager.getStats();
+        assertEquals(1, stats.getLeasedConnections());
+        assertEquals(0.25, stats.getUtilization(), 0.001);
+
+        manager.releaseConnection(connection, -1, TimeUnit.MILLISECONDS);
+        assertEquals(0, manager.getStats().getLeasedConnections());
+    }
+
+    @Test
+    public void shouldResizePoolWhileConnectionsAreInUse() throws Exception {
+        ManagedClientConnection first = lease();
+        ManagedClientConnection second = lease();
+
+        manager.setPoolSize(8, 8);
+        ManagedClientConnection third = lease();
+        ManagedClientConnection fourth = lease();
+        ManagedClientConnection fifth = lease();
+
+        ConnectionPoolStats stats = manager.getStats();
+        assertEquals(8, stats.getMaxTotalConnections());
+        assertEquals(8, stats.getMaxConnectionsPerRoute());
+        assertEquals(5, stats.getLeasedConnections());
+
+        // connections go back to the pool they came from, the way HttpClient releases them;
+        // those of the old pool are closed rather than kept alive, since it's no longer used
+        release(first);
+        release(second);
+        release(third);
+        stats = manager.getStats();
+        assertEquals(2, stats.getLeasedConnections());
+        assertEquals(1, stats.getIdleConnections());
+        release(fourth);
+        release(fifth);
+        stats = manager.getStats();
+        assertEquals(0, stats.getLeasedConnections());
+        assertEquals(3, stats.getIdleConnections());
+    }
+
+    @Test(timeout = 5000)
+    public void clientShouldStopWaitingForConnectionFromFullPool() throws Exception {
+        AbstractHttpClient previousHttpClient = BetterHttp.getHttpClient();
+        int socketTimeout = BetterHttp.getSocketTimeout();
+        BetterHttp.setSocketTimeout(100);
+        BetterHttp.setupHttpClient();
+        AbstractHttpClient httpClient = BetterHttp.getHttpClient();
+        ClientConnectionManager connectionManager = httpClient.getConnectionManager();
+        try {
+            // takes up every connection of the pool without going to the network
+            for (int i = 0; i < BetterHttp.getMaximumConnections(); i++) {
+                HttpRoute route = new HttpRoute(new HttpHost("host" + i + ".example.com", 80));
+                connectionManager.requestConnection(route, null).getConnection(1000,
+                        TimeUnit.MILLISECONDS);
+            }
+
+            try {
+                httpClient.execute(new HttpGet("http://example.com/"));
+                fail("expected the request to give up waiting for a connection");
+            } catch (ConnectionPoolTimeoutException e) {
+                // the pool is still full
+            }
+            assertEquals(1, BetterHttp.getConnectionPoolStats().getTimeoutCount());
+        } finally {
+            connectionManager.shutdown();
+            BetterHttp.setHttpClient(previousHttpClient);
+            BetterHttp.setSocketTimeout(socketTimeout);
+        }
+    }
+
+    @Test
+    public void shouldHonorShorterKeepAliveTimeoutOfServer() {
+        BetterHttp.setKeepAliveDuration(30 * 1000);
+        BetterHttp.KeepAliveStrategy strategy = new BetterHttp.KeepAliveStrategy();
+
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        assertEquals(30 * 1000, strategy.getKeepAliveDuration(response, null));
+
+        response.setHeader("Keep-Alive", "timeout=5, max=100");
+        assertEquals(5 * 1000, strategy.getKeepAliveDuration(response, null));
+
+        response.setHeader("Keep-Alive", "timeout=300");
+        assertEquals(30 * 1000, strategy.getKeepAliveDuration(response, null));
+    }
+}
@@ -2,19 +2,39 @@ package com.github.droidfu.http;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
 
+import java.net.ConnectException;
+import java.net.SocketException;
+
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.protocol.HttpContext;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 @RunWith(PowerMockRunner.class)
-@PrepareForTest( { Log.class })
+@PrepareForTest( { Log.class, SystemClock.class })
 public class BetterHttpRequestTest extends BetterHttpTestBase {
 
+    @Before
+    public void skipRetryDelays() {
+        // send() sleeps between attempts, which the android.jar stub doesn't allow
+        mockStatic(SystemClock.class);
+    }
+
     @Test
     public void testWithTimeout() throws Exception {
         // timeout before sending request
@@ -23,16 +43,61 @@ public class BetterHttpRequestTest extends BetterHttpTestBase {
 
         // change timeout to 1 for this single request
         BetterHttpRequest request = BetterHttp.get(url).withTimeout(1);
-        assertEquals(1, BetterHttp.getSocketTimeout());
-        assertEquals(1, httpClientMock.getParams().getIntParameter(CoreConnectionPNames.SO_TIMEOUT,
-                BetterHttp.DEFAULT_SOCKET_TIMEOUT));
-
         request.send();
 
-        // make sure it is reset to its former value
+        // the request carries its own timeout...
+        assertEquals(1, request.unwrap().getParams().getIntParameter(
+                CoreConnectionPNames.SO_TIMEOUT, BetterHttp.DEFAULT_SOCKET_TIMEOUT));
+
+        // ...and leaves the global one alone
         assertEquals(timeout, BetterHttp.getSocketTimeout());
         assertEquals(timeout, httpClientMock.getParams().getIntParameter(
                 CoreConnectionPNames.SO_TIMEOUT, BetterHttp.DEFAULT_SOCKET_TIMEOUT));
     }
 
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testWithDeadline() throws Exception {
+        when(
+                httpClientMock.execute(any(HttpUriRequest.class), any(ResponseHandler.class),
+                        any(HttpContext.class))).thenThrow(new SocketException());
+
+        RetryPolicy retryPolicy = BetterHttp.getRetryPolicy();
+        // every retry would have to wait for longer than the deadline
+        BetterHttp.setRetryPolicy(new RetryPolicy(10 * 1000, 10 * 1000, 10, 1000));
+        try {
+            BetterHttp.get(url).withDeadline(1000).send();
+            fail("expected the request to fail");
+        } catch (ConnectException e) {
+            assertTrue(e.getCause() instanceof SocketException);
+        } finally {
+            BetterHttp.setRetryPolicy(retryPolicy);
+        }
+
+        verify(httpClientMock, times(1)).execute(any(HttpUriRequest.class),
+                any(ResponseHandler.class), any(HttpContext.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testRetriesExceptionsNotHandledByHttpClient() throws Exception {
+        when(
+                httpClientMock.execute(any(HttpUriRequest.class), any(ResponseHandler.class),
+                        any(HttpContext.class))).thenThrow(new SocketException());
+
+        RetryPolicy retryPolicy = BetterHttp.getRetryPolicy();
+        BetterHttp.setRetryPolicy(new RetryPolicy(1, 1, 100, 1000));
+        try {
+            BetterHttp.get(url).retries(3).send();
+            fail("expected the request to fail");
+        } catch (ConnectException e) {
+            assertTrue(e.getCause() instanceof SocketException);
+        } finally {
+            BetterHttp.setRetryPolicy(retryPolicy);
+        }
+
+        verify(httpClientMock, times(3 + 1)).execute(any(HttpUriRequest.class),
+                any(ResponseHandler.class), any(HttpContext.class));
+    }
+
 }
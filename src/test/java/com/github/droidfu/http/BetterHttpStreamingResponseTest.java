@@ -0,0 +1,150 @@
+package com.github.droidfu.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import android.util.Log;
+
+import com.github.droidfu.TestBase;
+import com.github.droidfu.cachefu.HttpResponseCache;
+import com.github.droidfu.http.CachedHttpResponse.ResponseData;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Log.class })
+public class BetterHttpStreamingResponseTest extends TestBase {
+
+    private static final String URL = "http://example.com/large";
+
+    private byte[] body = "Here be a lot of Jason.".getBytes();
+
+    private HttpResponseCache cache;
+
+    @Before
+    public void setupCache() {
+        cache = new HttpResponseCache(10, 60, 1);
+    }
+
+    private BetterHttpStreamingResponse newResponse() throws Exception {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setHeader("ETag", "\"v1\"");
+        response.setEntity(new ByteArrayEntity(body));
+        return new BetterHttpStreamingResponse(new HttpGet(URL), response, cache,
+                HttpCachePolicy.newResponseData(response, null), URL);
+    }
+
+    @Test
+    public void shouldCacheResponseOnceStreamIsReadToTheEnd() throws Exception {
+        InputStream istream = newResponse().getResponseBody();
+        assertEquals(body[0], istream.read());
+        assertFalse(cache.containsKey(URL));
+
+        byte[] buffer = new byte[body.length + 1];
+        int offset = 1;
+        int n;
+        while ((n = istream.read(buffer, offset, buffer.length - offset)) != -1) {
+            offset += n;
+        }
+        istream.close();
+        assertEquals(body.length, offset);
+        assertTrue(cache.containsKey(URL));
+        assertArrayEquals(body, cache.get(URL).getResponseBody());
+        assertEquals(200, cache.get(URL).getStatusCode());
+    }
+
+    @Test
+    public void shouldStreamResponseToDiskWithItsMetadata() throws Exception {
+        File rootDir = File.createTempFile("cachefu", "test");
+        rootDir.delete();
+        rootDir.mkdirs();
+        try {
+            cache.setDiskCacheEnabled(rootDir.getAbsolutePath());
+            new File(cache.getDiskCacheDirectory()).mkdirs();
+
+            assertArrayEquals(body, newResponse().getResponseBodyAsBytes());
+            assertFalse(cache.containsKeyInMemory(URL));
+
+            ResponseData cachedData = cache.get(URL);
+            assertEquals(200, cachedData.getStatusCode());
+            assertEquals("\"v1\"", cachedData.getETag());
+            assertNull(cachedData.getLastModified());
+            assertArrayEquals(body, cachedData.getResponseBody());
+        } finally {
+            deleteRecursively(rootDir);
+        }
+    }
+
+    @Test
+    public void shouldCacheGzippedResponsesAsTheyCameIn() throws Exception {
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        GZIPOutputStream ostream = new GZIPOutputStream(gzipped);
+        ostream.write(body);
+        ostream.close();
+
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        ByteArrayEntity entity = new ByteArrayEntity(gzipped.toByteArray());
+        entity.setContentEncoding("gzip");
+        response.setEntity(new BetterHttp.GZIPInflatingEntity(entity));
+        cache.setCompressionEnabled(true);
+        BetterHttpStreamingResponse streamingResponse = new BetterHttpStreamingResponse(
+                new HttpGet(URL), response, cache, HttpCachePolicy.newResponseData(response,
+                        null), URL);
+
+        assertArrayEquals(body, streamingResponse.getResponseBodyAsBytes());
+        ResponseData cachedData = cache.get(URL);
+        assertTrue(cachedData.isCompressed());
+        assertArrayEquals(gzipped.toByteArray(), cachedData.getStoredBody());
+        assertArrayEquals(body, cachedData.getResponseBody());
+    }
+
+    @Test
+    public void shouldNotCacheResponseIfStreamIsClosedEarly() throws Exception {
+        InputStream istream = newResponse().getResponseBody();
+        istream.read(new byte[4]);
+        istream.close();
+        assertNull(cache.get(URL));
+    }
+
+    @Test
+    public void shouldReadBodyOnlyOnce() throws Exception {
+        BetterHttpStreamingResponse response = newResponse();
+        assertEquals(new String(body), response.getResponseBodyAsString());
+        assertArrayEquals(body, response.getResponseBodyAsBytes());
+        assertArrayEquals(body, cache.get(URL).getResponseBody());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldNotHandOutLiveStreamTwice() throws Exception {
+        BetterHttpStreamingResponse response = newResponse();
+        response.getResponseBody();
+        response.getResponseBody();
+    }
+
+    private void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
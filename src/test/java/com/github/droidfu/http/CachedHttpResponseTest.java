@@ -0,0 +1,138 @@
+package com.github.droidfu.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import android.util.Log;
+
+import com.github.droidfu.TestBase;
+import com.github.droidfu.cachefu.CacheHelper;
+import com.github.droidfu.cachefu.HttpResponseCache;
+import com.github.droidfu.http.CachedHttpResponse.ResponseData;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Log.class })
+public class CachedHttpResponseTest extends TestBase {
+
+    private static final String URL = "http://example.com/places";
+
+    private static final String JSON = "{\"name\":\"Caf\u00e9\"}";
+
+    private byte[] body;
+
+    private File rootDir;
+
+    private HttpResponseCache cache;
+
+    @Before
+    public void setupCache() throws IOException {
+        rootDir = File.createTempFile("cachefu", "test");
+        rootDir.delete();
+        rootDir.mkdirs();
+        cache = new HttpResponseCache(10, 60, 1);
+        cache.setDiskCacheEnabled(rootDir.getAbsolutePath());
+        new File(cache.getDiskCacheDirectory()).mkdirs();
+        body = JSON.getBytes("UTF-8");
+    }
+
+    @After
+    public void deleteRootDir() {
+        deleteRecursively(rootDir);
+    }
+
+    private ResponseData newResponseData(int statusCode) {
+        return new ResponseData(statusCode, body, 1000, 2000, new Header[] {
+                new BasicHeader("Content-Type", "application/json; charset=UTF-8"),
+                new BasicHeader("ETag", "\"v1\"") });
+    }
+
+    @Test
+    public void shouldRestoreResponsesFromDisk() throws Exception {
+        cache.put(URL, newResponseData(503));
+        cache.removeKey(URL);
+        assertFalse(cache.containsKeyInMemory(URL));
+
+        ResponseData data = cache.get(URL);
+        assertEquals(503, data.getStatusCode());
+        assertEquals(1000, data.getResponseTime());
+        assertEquals(2000, data.getExpirationTime());
+        assertEquals("\"v1\"", data.getETag());
+        assertArrayEquals(body, data.getResponseBody());
+    }
+
+    @Test
+    public void shouldKeepBodiesCompressedIfEnabled() throws Exception {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 100; i++) {
+            json.append(JSON).append(',');
+        }
+        body = json.append("{}]").toString().getBytes("UTF-8");
+        cache.setCompressionEnabled(true);
+        cache.put(URL, newResponseData(200));
+
+        ResponseData data = cache.get(URL);
+        assertTrue(data.isCompressed());
+        assertTrue(data.getStoredBody().length < body.length / 5);
+        assertEquals(data.getStoredBody().length, HttpResponseCache.BODY_SIZE_WEIGHER.weigh(data));
+
+        cache.removeKey(URL);
+        data = cache.get(URL);
+        assertTrue(data.isCompressed());
+        assertArrayEquals(body, data.getResponseBody());
+        assertEquals(new String(body, "UTF-8"),
+                new CachedHttpResponse(data).getResponseBodyAsString());
+    }
+
+    @Test
+    public void shouldTreatFilesInUnknownFormatAsMisses() throws Exception {
+        FileOutputStream ostream = new FileOutputStream(new File(cache.getDiskCacheDirectory(),
+                CacheHelper.getFileNameFromUrl(URL)));
+        ostream.write(200);
+        ostream.write(body);
+        ostream.close();
+        cache.setDiskCacheEnabled(rootDir.getAbsolutePath());
+
+        assertNull(cache.get(URL));
+    }
+
+    @Test
+    public void shouldBehaveLikeALiveResponse() throws Exception {
+        CachedHttpResponse response = new CachedHttpResponse(newResponseData(200));
+        assertEquals("application/json; charset=UTF-8", response.getHeader("content-type"));
+        assertNull(response.getHeader("Content-Length"));
+        assertEquals(JSON, response.getResponseBodyAsString());
+
+        HttpResponse unwrapped = response.unwrap();
+        assertEquals(200, unwrapped.getStatusLine().getStatusCode());
+        assertEquals("\"v1\"", unwrapped.getFirstHeader("ETag").getValue());
+        assertEquals(JSON, EntityUtils.toString(unwrapped.getEntity()));
+    }
+
+    private void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,159 @@
+package com.github.droidfu.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import android.util.Log;
+
+import com.github.droidfu.TestBase;
+import com.github.droidfu.http.CachedHttpResponse.ResponseData;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Log.class })
+public class HttpCachePolicyTest extends TestBase {
+
+    private static final String URL = "http://example.com/feed";
+
+    private byte[] body = "Here be Jason.".getBytes();
+
+    private HttpResponse newResponse(int status) {
+        return new BasicHttpResponse(HttpVersion.HTTP_1_1, status, "");
+    }
+
+    @Test
+    public void responsesWithoutCachingHeadersShouldStayFresh() {
+        ResponseData data = HttpCachePolicy.newResponseData(newResponse(200), body);
+        assertTrue(data.isFresh());
+        assertFalse(data.hasValidators());
+    }
+
+    @Test
+    public void maxAgeShouldTakePrecedenceOverExpires() {
+        HttpResponse response = newResponse(200);
+        response.setHeader("Cache-Control", "public, max-age=60");
+        response.setHeader("Expires", DateUtils.formatDate(new Date(0)));
+        response.setHeader("Age", "10");
+        long before = System.currentTimeMillis();
+        ResponseData data = HttpCachePolicy.newResponseData(response, body);
+        assertTrue(data.isFresh());
+        assertTrue(data.getExpirationTime() >= before + 50 * 1000);
+        assertTrue(data.getExpirationTime() <= System.currentTimeMillis() + 50 * 1000);
+    }
+
+    @Test
+    public void expiresShouldBeRelativeToTheServerDate() {
+        HttpResponse response = newResponse(200);
+        // the server's clock is an hour behind ours
+        long serverNow = System.currentTimeMillis() - 60 * 60 * 1000;
+        response.setHeader("Date", DateUtils.formatDate(new Date(serverNow)));
+        response.setHeader("Expires", DateUtils.formatDate(new Date(serverNow + 2 * 60 * 1000)));
+        ResponseData data = HttpCachePolicy.newResponseData(response, body);
+        assertTrue(data.isFresh());
+        long lifetime = data.getExpirationTime() - data.getResponseTime();
+        // HTTP dates are only precise to the second
+        assertTrue(Math.abs(lifetime - 2 * 60 * 1000) <= 1000);
+    }
+
+    @Test
+    public void noCacheShouldRequireRevalidation() {
+        HttpResponse response = newResponse(200);
+        response.setHeader("Cache-Control", "no-cache");
+        response.setHeader("ETag", "\"v1\"");
+        ResponseData data = HttpCachePolicy.newResponseData(response, body);
+        assertFalse(data.isFresh());
+        assertTrue(data.hasValidators());
+    }
+
+    @Test
+    public void responsesWithOnlyAnETagShouldBeRevalidated() {
+        HttpResponse response = newResponse(200);
+        response.setHeader("ETag", "\"v1\"");
+        assertFalse(HttpCachePolicy.newResponseData(response, body).isFresh());
+    }
+
+    @Test
+    public void shouldNotCacheNoStoreOrUnsafeRequests() {
+        HttpResponse response = newResponse(200);
+        assertTrue(HttpCachePolicy.isCacheable(new HttpGet(URL), response));
+        assertFalse(HttpCachePolicy.isCacheable(new HttpPost(URL), response));
+        response.setHeader("Cache-Control", "private, no-store");
+        assertFalse(HttpCachePolicy.isCacheable(new HttpGet(URL), response));
+    }
+
+    @Test
+    public void shouldOnlyKeepHeadersThatApplyToTheCachedBody() {
+        HttpResponse response = newResponse(200);
+        response.setHeader("Content-Type", "application/json; charset=UTF-8");
+        response.setHeader("Content-Encoding", "gzip");
+        response.setHeader("Transfer-Encoding", "chunked");
+        response.setHeader("Set-Cookie", "session=secret");
+        response.setHeader("X-Rate-Limit", "100");
+        ResponseData data = HttpCachePolicy.newResponseData(response, body);
+        assertEquals(2, data.getHeaders().length);
+        assertEquals("100", data.getHeader("x-rate-limit"));
+        assertEquals("UTF-8", data.getCharset());
+    }
+
+    @Test
+    public void shouldSendValidatorsOfCachedResponse() {
+        ResponseData data = new ResponseData(200, body, 0, 0, new Header[] {
+                new BasicHeader("ETag", "\"v1\""),
+                new BasicHeader("Last-Modified", "Sat, 29 Oct 1994 19:43:31 GMT") });
+        HttpGet request = new HttpGet(URL);
+        HttpCachePolicy.addConditionalHeaders(request, data);
+        assertEquals("\"v1\"", request.getFirstHeader("If-None-Match").getValue());
+        assertEquals("Sat, 29 Oct 1994 19:43:31 GMT", request.getFirstHeader(
+                "If-Modified-Since").getValue());
+    }
+
+    @Test
+    public void notModifiedShouldRefreshEntryAndKeepBody() {
+        ResponseData stale = new ResponseData(200, body, 0, 60 * 1000, new Header[] {
+                new BasicHeader("ETag", "\"v1\""),
+                new BasicHeader("Content-Type", "application/json") });
+        HttpResponse notModified = newResponse(304);
+        ResponseData refreshed = HttpCachePolicy.refresh(stale, notModified);
+        assertSame(body, refreshed.getResponseBody());
+        assertEquals("\"v1\"", refreshed.getETag());
+        assertEquals("application/json", refreshed.getHeader("content-type"));
+        assertTrue(refreshed.isFresh());
+        assertEquals(60 * 1000, refreshed.getExpirationTime() - refreshed.getResponseTime());
+
+        notModified.setHeader("Cache-Control", "max-age=0");
+        notModified.setHeader("ETag", "\"v2\"");
+        refreshed = HttpCachePolicy.refresh(stale, notModified);
+        assertFalse(refreshed.isFresh());
+        assertEquals("\"v2\"", refreshed.getETag());
+    }
+
+    @Test
+    public void staleResponsesShouldOnlyBeServedWithinMaxStaleness() {
+        long now = System.currentTimeMillis();
+        ResponseData stale = new ResponseData(200, body, now - 20 * 1000, now - 10 * 1000,
+                new Header[] { new BasicHeader("Cache-Control", "max-age=10") });
+        assertTrue(HttpCachePolicy.mayServeStale(stale, 60 * 1000));
+        assertFalse(HttpCachePolicy.mayServeStale(stale, 5 * 1000));
+
+        ResponseData mustRevalidate = new ResponseData(200, body, now - 20 * 1000,
+                now - 10 * 1000, new Header[] { new BasicHeader("Cache-Control",
+                        "max-age=10, must-revalidate") });
+        assertFalse(HttpCachePolicy.mayServeStale(mustRevalidate, 60 * 1000));
+    }
+}
@@ -0,0 +1,196 @@
+package com.github.droidfu.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import android.util.Log;
+
+import com.github.droidfu.TestBase;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Log.class })
+public class RequestCoalescerTest extends TestBase {
+
+    private static final String URL = "http://example.com/popular";
+
+    private final CountDownLatch responseArrived = new CountDownLatch(1);
+
+    // released by every request that goes to the network
+    private final Semaphore executing = new Semaphore(0);
+
+    // released by every request that waits for an identical one instead
+    private final Semaphore waiting = new Semaphore(0);
+
+    private final AtomicInteger executions = new AtomicInteger();
+
+    // like a response from the network, which parses its JSON body only once
+    private BetterHttpResponse response;
+
+    // stands in for a request going to the network, which takes until responseArrived
+    private class SlowGet extends BetterHttpRequestBase {
+
+        SlowGet(String url) {
+            super(null);
+            request = new org.apache.http.client.methods.HttpGet(url);
+        }
+
+        @Override
+        BetterHttpResponse attempt(RetryState retryState) throws IOException {
+            executions.incrementAndGet();
+            executing.release();
+            try {
+                responseArrived.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted");
+            }
+            return response;
+        }
+    }
+
+    private class Sender extends Thread {
+
+        private final BetterHttpRequest request;
+
+        private volatile BetterHttpResponse response;
+
+        Sender(BetterHttpRequest request) {
+            this.request = request;
+        }
+
+        @Override
+        public void run() {
+            try {
+                response = request.send();
+            } catch (IOException e) {
+                // leaves the response null
+            }
+        }
+    }
+
+    @Before
+    public void enableCoalescing() throws IOException {
+        BasicHttpResponse httpResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        httpResponse.setEntity(new ByteArrayEntity("{}".getBytes()));
+        response = new BetterHttpResponseImpl(httpResponse);
+
+        // a request logs that it waits for an identical one right before it does
+        when(Log.d(any(String.class), any(String.class))).thenAnswer(new Answer<Integer>() {
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                String msg = (String) invocation.getArguments()[1];
+                if (msg.startsWith("Waiting for identical request")) {
+                    waiting.release();
+                }
+                return 0;
+            }
+        });
+
+        BetterHttp.setRequestCoalescingEnabled(true);
+    }
+
+    @After
+    public void disableCoalescing() {
+        BetterHttp.setRequestCoalescingEnabled(false);
+        BetterHttp.setAsyncExecutor(null);
+    }
+
+    @Test
+    public void shouldSendIdenticalConcurrentRequestsOnlyOnce() throws Exception {
+        long coalesced = BetterHttp.getCoalescedRequestCount();
+        Sender leader = new Sender(new SlowGet(URL));
+        Sender follower = new Sender(new SlowGet(URL));
+        leader.start();
+        assertTrue(executing.tryAcquire(5, TimeUnit.SECONDS));
+        follower.start();
+        assertTrue(waiting.tryAcquire(5, TimeUnit.SECONDS));
+        responseArrived.countDown();
+        leader.join();
+        follower.join();
+
+        assertEquals(1, executions.get());
+        assertEquals(coalesced + 1, BetterHttp.getCoalescedRequestCount());
+        assertSame(response, leader.response);
+        // the follower gets a response of its own, which it can't spoil for anyone else
+        assertNotSame(response, follower.response);
+        assertEquals(200, follower.response.getStatusCode());
+        assertArrayEquals(response.getResponseBodyAsBytes(),
+                follower.response.getResponseBodyAsBytes());
+        follower.response.getResponseBodyAsJson().put("spoiled", true);
+        assertFalse(response.getResponseBodyAsJson().has("spoiled"));
+    }
+
+    @Test
+    public void shouldStillSendCancelledRequestForThoseWaitingForIt() throws Exception {
+        BetterHttp.setAsyncExecutor(new Executor() {
+            public void execute(Runnable task) {
+                new Thread(task).start();
+            }
+        });
+        SlowGet leadingRequest = new SlowGet(URL);
+        Future<BetterHttpResponse> leader = leadingRequest.sendAsync();
+        assertTrue(executing.tryAcquire(5, TimeUnit.SECONDS));
+        Sender follower = new Sender(new SlowGet(URL));
+        follower.start();
+        assertTrue(waiting.tryAcquire(5, TimeUnit.SECONDS));
+
+        assertTrue(leader.cancel(true));
+        assertFalse(((HttpRequestBase) leadingRequest.unwrap()).isAborted());
+        responseArrived.countDown();
+        follower.join();
+
+        assertTrue(leader.isCancelled());
+        assertEquals(1, executions.get());
+        assertNotNull(follower.response);
+        assertEquals(200, follower.response.getStatusCode());
+    }
+
+    @Test
+    public void shouldNotCoalesceRequestsWithDifferentHeaders() throws Exception {
+        Sender leader = new Sender(new SlowGet(URL));
+        Sender other = new Sender(new SlowGet(URL).header("Accept", "text/xml"));
+        leader.start();
+        other.start();
+        assertTrue(executing.tryAcquire(2, 5, TimeUnit.SECONDS));
+        responseArrived.countDown();
+        leader.join();
+        other.join();
+
+        assertEquals(2, executions.get());
+    }
+
+    @Test
+    public void shouldSendRequestsAgainOnceTheFirstCompleted() throws Exception {
+        responseArrived.countDown();
+        new SlowGet(URL).send();
+        new SlowGet(URL).send();
+
+        assertEquals(2, executions.get());
+    }
+}
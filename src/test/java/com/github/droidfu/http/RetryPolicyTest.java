@@ -0,0 +1,50 @@
+package com.github.droidfu.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import android.util.Log;
+
+import com.github.droidfu.TestBase;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest( { Log.class })
+public class RetryPolicyTest extends TestBase {
+
+    @Test
+    public void delaysShouldGrowExponentiallyUpToTheMaximum() {
+        RetryPolicy policy = new RetryPolicy(100, 1000, 10, 1000);
+        for (int i = 0; i < 100; i++) {
+            assertInRange(50, 100, policy.getRetryDelay(1));
+            assertInRange(100, 200, policy.getRetryDelay(2));
+            assertInRange(200, 400, policy.getRetryDelay(3));
+            assertInRange(500, 1000, policy.getRetryDelay(5));
+            assertInRange(500, 1000, policy.getRetryDelay(100));
+        }
+    }
+
+    @Test
+    public void retriesShouldBeLimitedByTheBudget() throws Exception {
+        RetryPolicy policy = new RetryPolicy(100, 1000, 3, 50);
+        assertTrue(policy.acquireRetry());
+        assertTrue(policy.acquireRetry());
+        assertTrue(policy.acquireRetry());
+        assertFalse(policy.acquireRetry());
+
+        // refills at a fixed rate, but never beyond the maximum
+        Thread.sleep(60);
+        assertTrue(policy.acquireRetry());
+        Thread.sleep(500);
+        assertEquals(3, policy.getRemainingBudget());
+    }
+
+    private void assertInRange(long min, long max, long actual) {
+        assertTrue(actual + " not in [" + min + ", " + max + "]", actual >= min && actual <= max);
+    }
+}
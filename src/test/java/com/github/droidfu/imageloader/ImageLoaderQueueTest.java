@@ -0,0 +1,130 @@
+package com.github.droidfu.imageloader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Comparator;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import android.util.Log;
+
+import com.github.droidfu.TestBase;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Log.class })
+public class ImageLoaderQueueTest extends TestBase {
+
+    // jobs are ordered by the time they're created, so create them in the order they're requested
+    private ImageLoader newJob(String imageUrl, int priority) {
+        return new ImageLoader(imageUrl, imageUrl, 0, 0, priority);
+    }
+
+    private ImageLoader newJob(String imageUrl) {
+        return newJob(imageUrl, ImageLoader.PRIORITY_VISIBLE);
+    }
+
+    private ImageLoaderQueue newQueue(int capacity, Comparator<ImageLoader> policy,
+            ImageLoader... jobs) {
+        ImageLoaderQueue queue = new ImageLoaderQueue(capacity, policy);
+        for (ImageLoader job : jobs) {
+            assertTrue(queue.offer(job));
+        }
+        return queue;
+    }
+
+    @Test
+    public void shouldTakeJobsInOrderTheyWereRequested() throws Exception {
+        ImageLoader a = newJob("a"), b = newJob("b"), c = newJob("c");
+        ImageLoaderQueue queue = newQueue(10, ImageLoader.SCHEDULE_FIFO, b, c, a);
+
+        assertSame(a, queue.take());
+        assertSame(b, queue.take());
+        assertSame(c, queue.take());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void shouldTakeMostRecentlyRequestedJobsFirst() throws Exception {
+        ImageLoader a = newJob("a"), b = newJob("b"), c = newJob("c");
+        ImageLoaderQueue queue = newQueue(10, ImageLoader.SCHEDULE_LIFO, b, c, a);
+
+        assertSame(c, queue.take());
+        assertSame(b, queue.take());
+        assertSame(a, queue.take());
+    }
+
+    @Test
+    public void shouldTakeMostRecentlyRequestedJobsOfHighestPriorityFirst() throws Exception {
+        ImageLoader prefetched = newJob("a", ImageLoader.PRIORITY_PREFETCH);
+        ImageLoader visible = newJob("b", ImageLoader.PRIORITY_VISIBLE);
+        ImageLoader background = newJob("c", ImageLoader.PRIORITY_BACKGROUND);
+        ImageLoader latestVisible = newJob("d", ImageLoader.PRIORITY_VISIBLE);
+        ImageLoaderQueue queue = newQueue(10, ImageLoader.SCHEDULE_BY_PRIORITY, prefetched,
+                visible, background, latestVisible);
+
+        assertSame(latestVisible, queue.take());
+        assertSame(visible, queue.take());
+        assertSame(prefetched, queue.take());
+        assertSame(background, queue.take());
+    }
+
+    @Test
+    public void shouldFollowPolicyChangesForQueuedJobs() throws Exception {
+        ImageLoader a = newJob("a"), b = newJob("b");
+        ImageLoaderQueue queue = newQueue(10, ImageLoader.SCHEDULE_FIFO, a, b);
+
+        queue.setPolicy(ImageLoader.SCHEDULE_LIFO);
+        assertSame(b, queue.peek());
+        assertSame(b, queue.take());
+    }
+
+    @Test
+    public void shouldDropLeastUrgentJobWhenFull() throws Exception {
+        ImageLoader a = newJob("a"), b = newJob("b"), c = newJob("c");
+        ImageLoaderQueue queue = newQueue(2, ImageLoader.SCHEDULE_LIFO, a, b);
+        long droppedBefore = ImageLoader.getDroppedJobCount();
+
+        // the queue never refuses a job, it makes room instead
+        assertTrue(queue.offer(c));
+
+        assertEquals(droppedBefore + 1, ImageLoader.getDroppedJobCount());
+        assertEquals(2, queue.size());
+        assertFalse(queue.contains(a));
+        assertSame(c, queue.take());
+        assertSame(b, queue.take());
+    }
+
+    @Test
+    public void shouldDropOfferedJobIfItIsLeastUrgent() throws Exception {
+        ImageLoader a = newJob("a"), b = newJob("b"), c = newJob("c");
+        ImageLoaderQueue queue = newQueue(2, ImageLoader.SCHEDULE_FIFO, a, b);
+        long droppedBefore = ImageLoader.getDroppedJobCount();
+
+        assertTrue(queue.offer(c));
+
+        assertEquals(droppedBefore + 1, ImageLoader.getDroppedJobCount());
+        assertEquals(0, queue.remainingCapacity());
+        assertFalse(queue.contains(c));
+        assertSame(a, queue.take());
+        assertSame(b, queue.take());
+    }
+
+    @Test
+    public void shouldDropLeastUrgentJobsWhenShrunk() throws Exception {
+        ImageLoader a = newJob("a"), b = newJob("b"), c = newJob("c");
+        ImageLoaderQueue queue = newQueue(10, ImageLoader.SCHEDULE_LIFO, a, b, c);
+        long droppedBefore = ImageLoader.getDroppedJobCount();
+
+        queue.setCapacity(1);
+
+        assertEquals(droppedBefore + 2, ImageLoader.getDroppedJobCount());
+        assertEquals(1, queue.size());
+        assertSame(c, queue.take());
+    }
+}